@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Client.java — network-ready version
@@ -11,10 +14,22 @@ import java.util.*;
  *  - Supports both Race and Quiz modes
  *  - Safe for Windows console (no Unicode)
  *  - Asks for server IP on startup
+ *  - Type MAPMODE DELTA to get map snapshots + cell deltas instead of full frames
+ *  - java Client --binary uses the compact binary protocol (always delta maps);
+ *    add --compress=rle or --compress=deflate for compressed large frames
  */
 public class Client {
+    // Local map for MAPMODE DELTA / --binary (listener thread only)
+    private static char[][] grid = null;
+    private static long mapVersion = -1;
+    private static int viewX = 0, viewY = 0, worldSize = 0; // grid is this window of the world
+    private static boolean awaitingSnapshot = false;
+    private static String compression = ""; // "", "RLE" or "DEFLATE" (binary protocol only)
+
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
+        boolean binary = Arrays.asList(args).contains("--binary");
+        for (String a : args) if (a.startsWith("--compress=")) compression = a.substring(11).toUpperCase();
 
         try {
             // ✅ Ask for server IP
@@ -24,47 +39,10 @@ public class Client {
 
             // ✅ Connect to the server
             Socket socket = new Socket(ip, 12345);
-            System.out.println("Connected to server at " + ip + ":12345");
-
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-            // ✅ Background listener thread for server messages
-            Thread listener = new Thread(() -> {
-                try {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        if (line.startsWith("[FINISH]:")) {
-                            // Race mode finish message
-                            String[] parts = line.split(":");
-                            if (parts.length >= 3) {
-                                System.out.println("\n>>> " + parts[1] + " finished the race in " + parts[2] + " seconds!");
-                            }
-                        } else if (line.startsWith("[QUESTION_PROMPT]")) {
-                            // Quiz mode question prompt
-                            System.out.println("Type your answer using: ANSWER <number>");
-                        } else {
-                            // Normal server messages
-                            System.out.println("> " + line);
-                        }
-                    }
-                } catch (IOException e) {
-                    System.out.println("Disconnected from server.");
-                }
-            });
-
-            listener.setDaemon(true);
-            listener.start();
+            System.out.println("Connected to server at " + ip + ":12345" + (binary ? " (binary protocol)" : ""));
 
-            // ✅ Send player input to server
-            while (true) {
-                String msg = sc.nextLine();
-                out.println(msg);
-                if (msg.equalsIgnoreCase("exit")) {
-                    System.out.println("Exiting game...");
-                    break;
-                }
-            }
+            if (binary) runBinary(socket, sc);
+            else runText(socket, sc);
 
             socket.close();
             sc.close();
@@ -73,5 +51,310 @@ public class Client {
             System.out.println("Connection error: " + e.getMessage());
         }
     }
-}
 
+    private static void runText(Socket socket, Scanner sc) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        // ✅ Background listener thread for server messages
+        Thread listener = new Thread(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) handleLine(line, () -> out.println("RESYNC"));
+            } catch (IOException e) {
+                System.out.println("Disconnected from server.");
+            }
+        });
+
+        listener.setDaemon(true);
+        listener.start();
+
+        // ✅ Send player input to server
+        while (true) {
+            String msg = sc.nextLine();
+            out.println(msg);
+            if (msg.equalsIgnoreCase("exit")) {
+                System.out.println("Exiting game...");
+                break;
+            }
+        }
+    }
+
+    private static void handleLine(String line, Runnable resync) {
+        if (line.startsWith("[FINISH]:")) {
+            // Race mode finish message
+            String[] parts = line.split(":");
+            if (parts.length >= 3) {
+                System.out.println("\n>>> " + parts[1] + " finished the race in " + parts[2] + " seconds!");
+            }
+        } else if (line.startsWith("[MAP_SNAPSHOT] ")) {
+            applySnapshot(line);
+        } else if (line.startsWith("[MAP_DELTA] ")) {
+            if (!applyDelta(line) && !awaitingSnapshot) {
+                awaitingSnapshot = true; // missed an update: ask for a fresh copy
+                resync.run();
+            }
+        } else if (line.startsWith("[QUESTION_PROMPT]")) {
+            // Quiz mode question prompt
+            System.out.println("Type your answer using: ANSWER <number>");
+        } else {
+            // Normal server messages
+            System.out.println("> " + line);
+        }
+    }
+
+    // [MAP_SNAPSHOT] <version> <size> <treasuresLeft> <cells> [<x0> <y0> <worldSize>]
+    private static void applySnapshot(String line) {
+        String[] p = line.split(" ");
+        if (p.length < 5) return;
+        int size = Integer.parseInt(p[2]);
+        grid = new char[size][size];
+        for (int r = 0; r < size; r++) p[4].getChars(r * size, (r + 1) * size, grid[r], 0);
+        boolean view = p.length >= 8;
+        setView(view ? Integer.parseInt(p[5]) : 0, view ? Integer.parseInt(p[6]) : 0, view ? Integer.parseInt(p[7]) : size);
+        mapVersion = Long.parseLong(p[1]);
+        awaitingSnapshot = false;
+        printMap(p[3]);
+    }
+
+    // [MAP_DELTA] <fromVersion> <toVersion> <treasuresLeft> <x>,<y>,<cell> ...
+    private static boolean applyDelta(String line) {
+        String[] p = line.split(" ");
+        if (grid == null || p.length < 4 || Long.parseLong(p[1]) != mapVersion) return false;
+        for (int i = 4; i < p.length; i++) {
+            String[] cell = p[i].split(",", 3);
+            setCell(Integer.parseInt(cell[0]), Integer.parseInt(cell[1]), cell[2].charAt(0));
+        }
+        mapVersion = Long.parseLong(p[2]);
+        printMap(p[3]);
+        return true;
+    }
+
+    private static void setView(int x0, int y0, int size) {
+        viewX = x0;
+        viewY = y0;
+        worldSize = size;
+    }
+
+    // deltas carry world coordinates; cells outside our window are not ours to draw
+    private static void setCell(int x, int y, char c) {
+        x -= viewX;
+        y -= viewY;
+        if (x >= 0 && y >= 0 && x < grid.length && y < grid.length) grid[y][x] = c;
+    }
+
+    private static void printMap(String treasuresLeft) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n--- MAP ").append(worldSize).append("x").append(worldSize);
+        if (grid.length < worldSize) {
+            sb.append(", view ").append(grid.length).append("x").append(grid.length).append(" at (").append(viewX).append(',').append(viewY).append(')');
+        }
+        sb.append(" ---\n");
+        for (char[] row : grid) {
+            for (char c : row) sb.append(c).append(' ');
+            sb.append('\n');
+        }
+        sb.append("Treasures left: ").append(treasuresLeft);
+        System.out.println(sb);
+    }
+
+    // ======= Binary protocol (java Client --binary) =======
+    // Frames are varint(length) + u8 type + payload; see Server.BinaryWire.
+    private static final int TEXT = 1, MAP_SNAPSHOT = 2, MAP_DELTA = 3, QUESTION = 4, RESULT = 5, COMPRESSED = 6;
+    private static final int MOVE = 16, ANSWER = 17, COMMAND = 18;
+
+    private static void runBinary(Socket socket, Scanner sc) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // Negotiate before sending anything else; the server acks in text, then both sides switch.
+        out.write(("HELLO BINARY " + compression + "\n").getBytes());
+        out.flush();
+        String ack;
+        while ((ack = readTextLine(in)) != null && !ack.startsWith("[HELLO] BINARY")) {
+            // the text name prompt; it is repeated as a binary frame after the ack
+        }
+        if (ack == null) { System.out.println("Disconnected from server."); return; }
+
+        Thread listener = new Thread(() -> {
+            try {
+                while (true) readFrame(in, out);
+            } catch (IOException e) {
+                System.out.println("Disconnected from server.");
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+
+        while (true) {
+            String msg = sc.nextLine();
+            sendBinary(out, msg);
+            if (msg.equalsIgnoreCase("exit")) {
+                System.out.println("Exiting game...");
+                break;
+            }
+        }
+    }
+
+    private static void readFrame(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] body = new byte[(int) readVarint(in)];
+        in.readFully(body);
+        dispatchFrame(body, out);
+    }
+
+    private static void dispatchFrame(byte[] body, DataOutputStream out) throws IOException {
+        DataInputStream f = new DataInputStream(new ByteArrayInputStream(body));
+        switch (f.readUnsignedByte()) {
+            case COMPRESSED: {
+                int method = f.readUnsignedByte();
+                byte[] raw = new byte[(int) readVarint(f)];
+                byte[] packed = new byte[f.available()];
+                f.readFully(packed);
+                if (method == 1) unpackBits(packed, raw);
+                else inflate(packed, raw);
+                dispatchFrame(raw, out);
+                break;
+            }
+            case TEXT:
+                handleLine(readString(f), () -> sendBinary(out, "RESYNC"));
+                break;
+            case MAP_SNAPSHOT: {
+                mapVersion = readVarint(f);
+                int size = (int) readVarint(f);
+                long left = readVarint(f);
+                grid = new char[size][size];
+                for (int r = 0; r < size; r++) for (int c = 0; c < size; c++) grid[r][c] = (char) readVarint(f);
+                boolean view = f.available() > 0; // older servers end here
+                setView(view ? (int) readVarint(f) : 0, view ? (int) readVarint(f) : 0, view ? (int) readVarint(f) : size);
+                awaitingSnapshot = false;
+                printMap(String.valueOf(left));
+                break;
+            }
+            case MAP_DELTA: {
+                long from = readVarint(f), to = readVarint(f), left = readVarint(f);
+                if (grid == null || from != mapVersion) {
+                    if (!awaitingSnapshot) { awaitingSnapshot = true; sendBinary(out, "RESYNC"); }
+                    break;
+                }
+                for (long n = readVarint(f); n > 0; n--) {
+                    int x = (int) readVarint(f), y = (int) readVarint(f);
+                    setCell(x, y, (char) readVarint(f));
+                }
+                mapVersion = to;
+                printMap(String.valueOf(left));
+                break;
+            }
+            case QUESTION: {
+                long a = unzigzag(readVarint(f));
+                char op = (char) f.readUnsignedByte();
+                long b = unzigzag(readVarint(f));
+                System.out.println("> [QUESTION] " + a + " " + op + " " + b + " = ?");
+                break;
+            }
+            case RESULT: {
+                String who = readString(f);
+                System.out.println("\n>>> " + who + " finished the race in " + String.format(Locale.US, "%.3f", readVarint(f) / 1000.0) + " seconds!");
+                break;
+            }
+            default:
+                // unknown frame type from a newer server: skip it
+        }
+    }
+
+    private static void sendBinary(DataOutputStream out, String msg) {
+        String t = msg.trim();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        if (t.length() == 1 && "wasdWASD".contains(t)) {
+            b.write(MOVE);
+            b.write(Character.toLowerCase(t.charAt(0)));
+        } else if (t.toLowerCase().startsWith("answer ") && t.substring(7).trim().matches("-?\\d{1,9}")) {
+            b.write(ANSWER);
+            long v = Long.parseLong(t.substring(7).trim());
+            writeVarint(b, (v << 1) ^ (v >> 63));
+        } else {
+            b.write(COMMAND);
+            byte[] utf = t.getBytes(StandardCharsets.UTF_8);
+            writeVarint(b, utf.length);
+            b.write(utf, 0, utf.length);
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        writeVarint(frame, b.size());
+        frame.write(b.toByteArray(), 0, b.size());
+        synchronized (out) { // the listener sends RESYNC too
+            try { frame.writeTo(out); out.flush(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static String readTextLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') line.write(b);
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString().trim();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf = new byte[(int) readVarint(in)];
+        in.readFully(utf);
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("varint too long");
+    }
+
+    private static void writeVarint(ByteArrayOutputStream b, long v) {
+        while ((v & ~0x7FL) != 0) { b.write((int) ((v & 0x7F) | 0x80)); v >>>= 7; }
+        b.write((int) v);
+    }
+
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    // Inverse of the server's PackBits RLE
+    private static void unpackBits(byte[] in, byte[] out) {
+        int i = 0, o = 0;
+        while (i < in.length && o < out.length) {
+            int n = in[i++] & 0xFF;
+            if (n < 128) {
+                System.arraycopy(in, i, out, o, n + 1);
+                i += n + 1;
+                o += n + 1;
+            } else {
+                Arrays.fill(out, o, o + n - 125, in[i++]);
+                o += n - 125;
+            }
+        }
+    }
+
+    // Must match Server.FrameCompression.dictionary()
+    private static byte[] deflateDictionary() {
+        StringBuilder sb = new StringBuilder("[SERVER] [QUIZ] [RESULT] [BOT MOVE]  joined. left. found a treasure! Treasures left: ");
+        for (int i = 0; i < 256; i++) sb.append(i % 32 == 0 ? 'T' : '.');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void inflate(byte[] in, byte[] out) throws IOException {
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput(in);
+            int o = 0;
+            while (o < out.length) {
+                int n = inf.inflate(out, o, out.length - o);
+                if (n == 0 && inf.needsDictionary()) inf.setDictionary(deflateDictionary());
+                else if (n == 0 && (inf.finished() || inf.needsInput())) break;
+                o += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed frame", e);
+        } finally {
+            inf.end();
+        }
+    }
+}
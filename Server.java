@@ -1,66 +1,130 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Server.java (fixed duplicates)
  *
  * - Race & Quiz modes
+ * - Independent rooms (ROOMS, CREATE <name> [seed], JOIN <name>) on sharded executors
+ * - Seeded per-room randomness: -Dtreasure.seed=N, or replay one match with CREATE <name> <seed>
  * - Bots spawn when exactly one human connected
  * - Dynamic grid sizing
- * - Leaderboard persisted to leaderboard.json (simple JSON-like)
+ * - Leaderboard persisted as a snapshot, leaderboard.json (simple JSON-like), plus an
+ *   append-only checksummed journal of newer records, leaderboard.journal
+ * - Paged leaderboard from a sorted index (LEADERBOARD [page], RANK [name])
  *
  * Compile:
  *   javac --release 8 Server.java
  * Run:
  *   java Server
+ *   java -Dtreasure.io=virtual Server                         (virtual threads, Java 21+)
+ *   java -Dtreasure.io=nio [-Dtreasure.io.threads=N] Server   (selector-based I/O)
+ *
+ * Clients may answer the name prompt with "HELLO BINARY [RLE|DEFLATE]" to switch to
+ * the length-prefixed binary protocol (see BinaryWire, FrameCompression); others
+ * keep the text lines.
  */
 public class Server {
     // ======= Config =======
     private static final int PORT = 12345;
-    private static final Random RAND = new Random();
     private static final int BASE_TREASURES = 5;
     private static final int QUIZ_TIME_LIMIT_MS = 15_000;
     private static final String LEADERBOARD_FILE = "leaderboard.json";
+    private static final String JOURNAL_FILE = "leaderboard.journal";
+    private static final String COMPACTING_FILE = "leaderboard.journal.compacting"; // journal being folded into the snapshot
+    private static final int LEADERBOARD_PAGE = Math.max(1, Integer.getInteger("treasure.leaderboard.page", 20)); // records per LEADERBOARD page
+    private static final int COMPACT_RECORDS = Integer.getInteger("treasure.journal.compact", 10_000); // journal records per compaction
+    private static final int JOURNAL_QUEUE = Integer.getInteger("treasure.journal.queue", 4096); // pending records; overflow forces a compaction
+    private static final String FSYNC_POLICY = System.getProperty("treasure.journal.fsync", "interval"); // "always" (per batch), "interval" or "never"
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("treasure.journal.fsync.ms", 1000);
+    private static final String IO_MODE = System.getProperty("treasure.io", "threads"); // "threads", "virtual" or "nio"
+    private static final int IO_THREADS = Math.max(1, Integer.getInteger("treasure.io.threads", Runtime.getRuntime().availableProcessors()));
+    private static final Charset WIRE_CHARSET = Charset.defaultCharset(); // what Client's reader/writer use
+    private static final String LINE_SEP = System.lineSeparator();
+    private static final ThreadFactory WORKERS = workerThreadFactory();
+    private static final int OUTBOX_CAPACITY = Integer.getInteger("treasure.outbox.frames", 1024);
+    private static final long OUTBOX_HIGH_BYTES = Long.getLong("treasure.outbox.high", 256 * 1024);
+    private static final long OUTBOX_LOW_BYTES = Long.getLong("treasure.outbox.low", 64 * 1024);
+    private static final SlowPolicy SLOW_POLICY = SlowPolicy.valueOf(System.getProperty("treasure.slow.policy", "coalesce").toUpperCase(Locale.ROOT));
+    private static final long SLOW_EVICT_MS = 1000L * Integer.getInteger("treasure.slow.seconds", 10);
+    private static final int TICK_HZ = Integer.getInteger("treasure.tick.hz", 20); // race mode; 0 = apply moves immediately
+    private static final int MAX_QUEUED_MOVES = 8;
+    private static final long LOBBY_TIMEOUT_MS = 1000L * Integer.getInteger("treasure.lobby.seconds", 20);
+    private static final String LOBBY_DEFAULT_MODE = System.getProperty("treasure.lobby.default", "race");
+    private static final int GRID_SIZE = Integer.getInteger("treasure.grid.size", 0);   // 0 = 10..20 by player count
+    private static final int TREASURES = Integer.getInteger("treasure.treasures", 0);    // 0 = by player count
+    private static final int VIEWPORT = Integer.getInteger("treasure.viewport", 31);     // window side per player; 0 = whole world
+    private static final int MAP_DRAW_MAX = Integer.getInteger("treasure.map.max", 100); // wider views send no map frames
+    private static final int SPAWN_CLEARANCE = Integer.getInteger("treasure.spawn.clearance", 1); // no treasure this close to a player; -1 = none
+    private static final int ROOM_SHARDS = Math.max(1, Integer.getInteger("treasure.room.shards", Runtime.getRuntime().availableProcessors()));
+    private static final Long SEED = Long.getLong("treasure.seed"); // fixes every room's first match seed; null = random
 
-    // ======= Runtime state =======
-    private static final CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private static final CopyOnWriteArrayList<Bot> bots = new CopyOnWriteArrayList<>();
-    private static final List<int[]> treasures = Collections.synchronizedList(new ArrayList<int[]>());
+    /**
+     * What to do with map updates for a player whose outbox is above the high watermark:
+     * DROP skips them (full frames are self-contained; delta clients get a snapshot later),
+     * COALESCE skips them and sends the latest map once the outbox drains below the low
+     * watermark, DISCONNECT keeps queuing but evicts after treasure.slow.seconds over.
+     */
+    private enum SlowPolicy { DROP, COALESCE, DISCONNECT }
 
-    private static final Map<String, Double> leaderboard = new ConcurrentHashMap<>();
+    // ======= Runtime state =======
+    private static final ScoreStore leaderboard = new ScoreStore();
 
-    private static volatile boolean gameStarted = false;
-    private static volatile String mode = "race"; // "race" or "quiz"
-    private static volatile int gridSize = 10;
-    private static volatile int treasureCount = BASE_TREASURES;
-    private static volatile long raceStartMillis = 0L;
+    // ReentrantLock rather than monitors: these are held across socket/file I/O,
+    // which would pin a virtual thread's carrier inside a synchronized block.
+    private static final ReentrantLock leaderboardLock = new ReentrantLock(); // the journal and its rotation
 
-    private static final QuizManager quizManager = new QuizManager();
+    // Rooms by name; a new room goes to the next shard round-robin. MAIN_ROOM is where
+    // every player starts and is never closed.
+    private static final ScheduledExecutorService[] SHARDS = roomShards();
+    private static final AtomicInteger nextShard = new AtomicInteger();
+    private static final ConcurrentSkipListMap<String, Room> rooms = new ConcurrentSkipListMap<>();
+    private static final Room MAIN_ROOM = openRoom("main");
 
     public static void main(String[] args) throws IOException {
         System.out.println("=== Treasure Hunt Server ===");
         loadLeaderboard();
+        if (SLOW_POLICY == SlowPolicy.DISCONNECT) startSlowConsumerSweep();
 
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("Listening on port " + PORT + " ...");
+        if ("nio".equalsIgnoreCase(IO_MODE)) {
+            startNioServer();
+        } else {
+            ServerSocket serverSocket = new ServerSocket(PORT);
+            System.out.println("Listening on port " + PORT + ("virtual".equalsIgnoreCase(IO_MODE) ? " (virtual threads)" : "") + " ...");
 
-        // accept clients on background thread
-        Thread acceptThread = new Thread(() -> {
-            while (true) {
-                try {
-                    Socket s = serverSocket.accept();
-                    ClientHandler ch = new ClientHandler(s);
-                    new Thread(ch).start();
-                } catch (IOException e) {
-                    System.out.println("Accept error: " + e.getMessage());
-                    break;
+            // accept clients on background thread
+            Thread acceptThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket s = serverSocket.accept();
+                        ClientHandler ch = new ClientHandler(s);
+                        WORKERS.newThread(ch).start();
+                    } catch (IOException e) {
+                        System.out.println("Accept error: " + e.getMessage());
+                        break;
+                    }
                 }
-            }
-        });
-        acceptThread.setDaemon(true);
-        acceptThread.start();
+            });
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
 
         // server console for admin commands
         try (Scanner sc = new Scanner(System.in)) {
@@ -68,26 +132,502 @@ public class Server {
                 String line = sc.nextLine().trim();
                 if (line.equalsIgnoreCase("quit") || line.equalsIgnoreCase("exit")) {
                     System.out.println("Shutting down server...");
+                    stopJournalWriter();
                     System.exit(0);
                 } else if (line.equalsIgnoreCase("clients")) {
-                    System.out.println("Humans: " + clients.size() + ", bots: " + bots.size());
-                } else if (line.equalsIgnoreCase("map")) {
-                    printServerMap();
-                } else if (line.equalsIgnoreCase("leaderboard")) {
-                    System.out.println(renderLeaderboard());
+                    for (Room r : rooms.values()) System.out.println(r.name + ": humans: " + r.clients.size() + ", bots: " + r.bots.size());
+                } else if (line.equalsIgnoreCase("rooms")) {
+                    System.out.print(renderRooms());
+                } else if (line.equalsIgnoreCase("map") || line.toLowerCase().startsWith("map ")) {
+                    Room r = line.length() > 3 ? rooms.get(line.substring(4).trim().toLowerCase(Locale.ROOT)) : MAIN_ROOM;
+                    if (r != null) r.printServerMap(); else System.out.println("No such room.");
+                } else if (line.equalsIgnoreCase("leaderboard") || line.toLowerCase().startsWith("leaderboard ")) {
+                    System.out.println(renderLeaderboard(line.substring(11).trim()));
+                } else if (line.toLowerCase().startsWith("rank ")) {
+                    System.out.println(renderRank(line.substring(5).trim()));
+                } else if (line.equalsIgnoreCase("stats")) {
+                    printStats();
+                } else if (line.equalsIgnoreCase("queues")) {
+                    printQueues();
+                }
+            }
+        }
+    }
+
+    /** Admin "stats": enough to compare memory per connection across -Dtreasure.io modes. */
+    private static void printStats() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        int conns = 0, botCount = 0;
+        for (Room r : rooms.values()) { conns += r.clients.size(); botCount += r.bots.size(); }
+        System.out.println("I/O mode: " + IO_MODE + ", rooms: " + rooms.size() + ", humans: " + conns + ", bots: " + botCount
+                + ", platform threads: " + ManagementFactory.getThreadMXBean().getThreadCount()
+                + ", heap used: " + (used >> 20) + " MB"
+                + (conns > 0 ? " (~" + (used / conns >> 10) + " KB per human)" : ""));
+        System.out.println(FrameCompression.report());
+    }
+
+    /** Admin "queues": per-player outbound backlog, to spot slow consumers. */
+    private static void printQueues() {
+        long now = System.currentTimeMillis();
+        System.out.println("Outbound queues (policy " + SLOW_POLICY + ", high " + OUTBOX_HIGH_BYTES + " B, low " + OUTBOX_LOW_BYTES + " B):");
+        for (Room r : rooms.values()) {
+            for (ClientHandler c : r.clients) {
+                long over = c.overLimitSince;
+                System.out.println(String.format(Locale.US, "  %-16s %-16s %5d frames %9d bytes  dropped maps %d%s",
+                        r.name, c.name, c.outbox.size(), c.queuedBytes.get(), c.droppedMaps.get(),
+                        over != 0L ? "  OVER LIMIT " + (now - over) / 1000 + "s" : ""));
+            }
+        }
+    }
+
+    /** DISCONNECT policy: evicts players that stayed over the high watermark too long. */
+    private static void startSlowConsumerSweep() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(1000); } catch (InterruptedException e) { return; }
+                long now = System.currentTimeMillis();
+                for (Room r : rooms.values()) {
+                    for (ClientHandler c : r.clients) {
+                        long over = c.overLimitSince;
+                        if (over != 0L && now - over > SLOW_EVICT_MS) {
+                            System.out.println("Evicting slow consumer " + c.name + " (" + c.queuedBytes.get() + " bytes queued)");
+                            c.closeConnection();
+                        }
+                    }
                 }
             }
+        }, "slow-consumer-sweep");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Threads for ClientHandlers and Bots. "virtual" uses Thread.ofVirtual()
+     * (Java 21+), looked up reflectively so the file still builds with --release 8.
+     */
+    private static ThreadFactory workerThreadFactory() {
+        if (!"virtual".equalsIgnoreCase(IO_MODE)) return Thread::new;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21+; using platform threads.");
+            return Thread::new;
+        }
+    }
+
+    /** Single-threaded daemon schedulers that rooms are pinned to. */
+    private static ScheduledExecutorService[] roomShards() {
+        ScheduledExecutorService[] shards = new ScheduledExecutorService[ROOM_SHARDS];
+        for (int i = 0; i < shards.length; i++) {
+            String threadName = "room-shard-" + i;
+            shards[i] = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
         }
+        return shards;
+    }
+
+    /** Registers a new room on the next shard; null if the name is taken. */
+    private static Room openRoom(String name) {
+        // same treasure.seed, same room name: same sequence of matches
+        return openRoom(name, SEED != null ? new SplittableRandom(SEED ^ name.hashCode()).nextLong() : ThreadLocalRandom.current().nextLong());
+    }
+
+    /** Like {@link #openRoom(String)}, with {@code seed} as the first match seed (CREATE <name> <seed> replays a match). */
+    private static Room openRoom(String name, long seed) {
+        Room r = new Room(name, SHARDS[Math.floorMod(nextShard.getAndIncrement(), SHARDS.length)], seed);
+        if (rooms.putIfAbsent(name, r) == null) return r;
+        if (r.ticker != null) r.ticker.cancel(false);
+        return null;
+    }
+
+    private static String renderRooms() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n=== ROOMS (").append(rooms.size()).append(") ===\n");
+        for (Room r : rooms.values()) sb.append(r.describe()).append('\n');
+        return sb.toString();
     }
 
     // ======= Leaderboard persistence =======
-    private static synchronized void loadLeaderboard() {
+    /**
+     * Best race time per player name, in milliseconds. Names hash to one of STRIPES
+     * independently locked open-addressed tables holding parallel String[] / long[]
+     * arrays, so a record costs one reference and one long (no Map.Entry, no boxed
+     * Double) and an update allocates nothing unless its stripe has to grow.
+     * Each stripe also keeps its records sorted in its own {@link RankIndex}, with
+     * every slot pointing at the record's node, so an improvement re-keys that node
+     * under the same stripe lock and updates in different stripes never contend.
+     * Ranks and pages combine the stripes' indexes one lock at a time.
+     */
+    private static final class ScoreStore {
+        static final long NONE = Long.MAX_VALUE;    // "no record" from get() and offer()
+        private static final int STRIPE_BITS = 6;   // 64 stripes
+
+        interface Visitor { void visit(String name, long millis); }
+
+        private static final class Stripe {
+            final ReentrantLock lock = new ReentrantLock();
+            String[] names = new String[16];
+            long[] millis = new long[16];
+            RankIndex.Node[] nodes = new RankIndex.Node[16]; // the record's place in ranks
+            final RankIndex ranks = new RankIndex();
+            int size = 0;
+
+            int slot(String name, int h) {
+                int mask = names.length - 1;
+                int i = h & mask;
+                while (names[i] != null && !names[i].equals(name)) i = (i + 1) & mask;
+                return i;
+            }
+
+            void grow() {
+                String[] oldNames = names;
+                long[] oldMillis = millis;
+                RankIndex.Node[] oldNodes = nodes;
+                names = new String[oldNames.length * 2];
+                millis = new long[oldNames.length * 2];
+                nodes = new RankIndex.Node[oldNames.length * 2];
+                for (int j = 0; j < oldNames.length; j++) {
+                    if (oldNames[j] == null) continue;
+                    int i = slot(oldNames[j], hash(oldNames[j]));
+                    names[i] = oldNames[j];
+                    millis[i] = oldMillis[j];
+                    nodes[i] = oldNodes[j];
+                }
+            }
+        }
+
+        private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+        ScoreStore() {
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+        }
+
+        private static int hash(String name) {
+            int h = name.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Keeps {@code millis} if it beats {@code name}'s record. Returns the previous
+         * record (NONE if there was none), so the record changed iff the result > millis.
+         */
+        long offer(String name, long millis) {
+            int h = hash(name);
+            Stripe st = stripes[h >>> (32 - STRIPE_BITS)];
+            st.lock.lock();
+            try {
+                int i = st.slot(name, h);
+                if (st.names[i] == null) {
+                    st.names[i] = name;
+                    st.millis[i] = millis;
+                    st.nodes[i] = st.ranks.place(null, name, millis);
+                    if (++st.size * 3 > st.names.length * 2) st.grow();
+                    return NONE;
+                }
+                long prev = st.millis[i];
+                if (millis < prev) {
+                    st.millis[i] = millis;
+                    st.ranks.place(st.nodes[i], name, millis);
+                }
+                return prev;
+            } finally {
+                st.lock.unlock();
+            }
+        }
+
+        long get(String name) {
+            int h = hash(name);
+            Stripe st = stripes[h >>> (32 - STRIPE_BITS)];
+            st.lock.lock();
+            try {
+                int i = st.slot(name, h);
+                return st.names[i] == null ? NONE : st.millis[i];
+            } finally {
+                st.lock.unlock();
+            }
+        }
+
+        int size() {
+            int n = 0;
+            for (Stripe st : stripes) n += st.size;
+            return n;
+        }
+
+        /**
+         * 1-based position of name's record in (millis, name) order, 0 if none; its time
+         * goes to millisOut[0]. O(STRIPES log n).
+         */
+        int rank(String name, long[] millisOut) {
+            int h = hash(name);
+            Stripe st = stripes[h >>> (32 - STRIPE_BITS)];
+            long millis;
+            st.lock.lock();
+            try {
+                int i = st.slot(name, h);
+                if (st.names[i] == null) return 0;
+                millis = st.millis[i];
+            } finally {
+                st.lock.unlock();
+            }
+            millisOut[0] = millis;
+            return 1 + countBefore(millis, name);
+        }
+
+        /** Records ordered before (millis, name), summed over the stripes one lock at a time. */
+        private int countBefore(long millis, String name) {
+            int n = 0;
+            for (Stripe st : stripes) {
+                st.lock.lock();
+                try {
+                    n += st.ranks.countBefore(millis, name);
+                } finally {
+                    st.lock.unlock();
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Visits up to count records in order, starting with the from-th (0-based): a
+         * binary search over times finds the time the page starts at, then each stripe
+         * contributes its next records from there and the few candidates are merged.
+         * Records changed meanwhile may shift the page by those records.
+         */
+        void page(int from, int count, Visitor v) {
+            if (count <= 0) return;
+            long lo = Long.MIN_VALUE, hi = NONE - 1;
+            while (lo < hi) { // least time with more than `from` records at or below it
+                long mid = lo + ((hi - lo) >>> 1);
+                if (countBefore(mid + 1, "") > from) hi = mid; else lo = mid + 1;
+            }
+            int skip = from - countBefore(lo, ""); // records tied at lo that sort ahead of the page
+            if (skip < 0) return;
+            List<RankIndex.Node> picked = new ArrayList<>();
+            for (Stripe st : stripes) {
+                st.lock.lock();
+                try {
+                    st.ranks.collect(lo, skip + count, picked);
+                } finally {
+                    st.lock.unlock();
+                }
+            }
+            picked.sort(RankIndex.ORDER);
+            for (int i = skip; i < Math.min(picked.size(), skip + count); i++) v.visit(picked.get(i).name, picked.get(i).millis);
+        }
+
+        /**
+         * Visits every record, one stripe at a time; records changed meanwhile may show
+         * either value. Each stripe is copied under its lock and visited after unlocking,
+         * so a slow visitor (the snapshot writer) never holds up offer().
+         */
+        void forEach(Visitor v) {
+            for (Stripe st : stripes) {
+                String[] names;
+                long[] millis;
+                int n = 0;
+                st.lock.lock();
+                try {
+                    names = new String[st.size];
+                    millis = new long[st.size];
+                    for (int i = 0; i < st.names.length; i++) {
+                        if (st.names[i] == null) continue;
+                        names[n] = st.names[i];
+                        millis[n++] = st.millis[i];
+                    }
+                } finally {
+                    st.lock.unlock();
+                }
+                for (int i = 0; i < n; i++) v.visit(names[i], millis[i]);
+            }
+        }
+    }
+
+    /**
+     * One stripe's records ordered by (millis, name) in a treap whose nodes carry
+     * subtree sizes, so counting the records ahead of a key and listing the records
+     * from a key are O(log n). The stripe keeps each player's node next to the
+     * record, so an improvement re-keys the existing node instead of allocating.
+     * Guarded by the owning stripe's lock.
+     */
+    private static final class RankIndex {
+        static final Comparator<Node> ORDER = (a, b) -> less(a, b) ? -1 : less(b, a) ? 1 : 0;
+
+        static final class Node {
+            final String name;
+            long millis;        // changed only while the node is out of the tree
+            final int priority;
+            int size = 1;
+            Node left, right;
+
+            Node(String name, long millis, int priority) { this.name = name; this.millis = millis; this.priority = priority; }
+        }
+
+        private Node root;
+        private int seed = 0x2545F491; // xorshift for priorities
+
+        /** Files name at millis: re-keys {@code n}, or a new node if n is null, and returns it. */
+        Node place(Node n, String name, long millis) {
+            if (n == null) {
+                seed ^= seed << 13; seed ^= seed >>> 17; seed ^= seed << 5;
+                n = new Node(name, millis, seed);
+            } else {
+                root = remove(root, n);
+                n.left = n.right = null;
+                n.size = 1;
+                n.millis = millis;
+            }
+            root = insert(root, n);
+            return n;
+        }
+
+        /** Records ordered before (millis, name). */
+        int countBefore(long millis, String name) {
+            int n = 0;
+            for (Node t = root; t != null; ) {
+                if (t.millis < millis || (t.millis == millis && t.name.compareTo(name) < 0)) {
+                    n += size(t.left) + 1;
+                    t = t.right;
+                } else {
+                    t = t.left;
+                }
+            }
+            return n;
+        }
+
+        /** Adds copies of the first max records with a time of at least millis, in order. */
+        void collect(long millis, int max, List<Node> out) {
+            collect(root, millis, new int[] {max}, out);
+        }
+
+        private static void collect(Node t, long millis, int[] left, List<Node> out) {
+            while (t != null && left[0] > 0) {
+                if (t.millis >= millis) {
+                    collect(t.left, millis, left, out);
+                    if (left[0] == 0) return;
+                    out.add(new Node(t.name, t.millis, 0));
+                    left[0]--;
+                }
+                t = t.right;
+            }
+        }
+
+        private static boolean less(Node a, Node b) {
+            return a.millis != b.millis ? a.millis < b.millis : a.name.compareTo(b.name) < 0;
+        }
+
+        private static int size(Node t) { return t == null ? 0 : t.size; }
+
+        private static Node fix(Node t) {
+            t.size = 1 + size(t.left) + size(t.right);
+            return t;
+        }
+
+        private static Node insert(Node t, Node n) {
+            if (t == null) return n;
+            if (n.priority > t.priority) {
+                Node[] lr = split(t, n);
+                n.left = lr[0];
+                n.right = lr[1];
+                return fix(n);
+            }
+            if (less(n, t)) t.left = insert(t.left, n); else t.right = insert(t.right, n);
+            return fix(t);
+        }
+
+        /** Splits t into the nodes ordered before and after n (n itself is not in t). */
+        private static Node[] split(Node t, Node n) {
+            if (t == null) return new Node[2];
+            if (less(t, n)) {
+                Node[] lr = split(t.right, n);
+                t.right = lr[0];
+                lr[0] = fix(t);
+                return lr;
+            }
+            Node[] lr = split(t.left, n);
+            t.left = lr[1];
+            lr[1] = fix(t);
+            return lr;
+        }
+
+        private static Node remove(Node t, Node n) {
+            if (t == n) return merge(t.left, t.right);
+            if (less(n, t)) t.left = remove(t.left, n); else t.right = remove(t.right, n);
+            return fix(t);
+        }
+
+        private static Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority > b.priority) {
+                a.right = merge(a.right, b);
+                return fix(a);
+            }
+            b.left = merge(a, b.left);
+            return fix(b);
+        }
+    }
+
+    // Record changes are appended to JOURNAL_FILE as
+    //   u16 nameLength | name (UTF-8) | i64 millis | i32 CRC32 of the preceding bytes
+    // so a record costs one small write however big the leaderboard is. Every
+    // COMPACT_RECORDS records the journal is renamed to COMPACTING_FILE, a fresh one is
+    // started, and a background thread writes the whole store as a new snapshot (temp
+    // file, fsync, atomic rename) and then deletes COMPACTING_FILE. Startup loads the
+    // snapshot and replays COMPACTING_FILE (if a compaction was cut short) and the
+    // journal; records only ever lower a time, so replaying one twice is harmless.
+    //
+    // Game threads never touch the disk: recordBest() only queues the record for the
+    // "leaderboard-writer" thread, which appends everything queued as one write (group
+    // commit) and fsyncs per FSYNC_POLICY. When the queue is full the record is dropped
+    // from it and a compaction is forced instead; the store already holds the record,
+    // so the snapshot picks it up.
+    private static FileOutputStream journalOut;  // leaderboardLock
+    private static int journalRecords = 0;       // leaderboardLock; since the last rotation
+    private static final ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(4096); // journal writer only
+    private static final BlockingQueue<ScoreRecord> journalQueue = new ArrayBlockingQueue<>(JOURNAL_QUEUE);
+    private static final AtomicBoolean journalOverflow = new AtomicBoolean();
+    private static final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private static volatile Thread journalWriter;
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "leaderboard-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static void loadLeaderboard() {
+        leaderboardLock.lock();
+        try {
+            loadSnapshot();
+            int replayed = replayJournal(new File(COMPACTING_FILE), false) + replayJournal(new File(JOURNAL_FILE), true);
+            System.out.println("Loaded leaderboard (" + leaderboard.size() + " records, " + replayed + " from the journal).");
+            try {
+                journalOut = new FileOutputStream(JOURNAL_FILE, true);
+            } catch (IOException e) {
+                System.out.println("Failed to open leaderboard journal: " + e.getMessage());
+            }
+            journalRecords = replayed;
+            if (journalRecords >= COMPACT_RECORDS || new File(COMPACTING_FILE).exists()) {
+                compactionQueued.set(true);
+                COMPACTOR.execute(Server::compactLeaderboard);
+            }
+            startJournalWriter();
+        } finally {
+            leaderboardLock.unlock();
+        }
+    }
+
+    private static void loadSnapshot() {
         File f = new File(LEADERBOARD_FILE);
         if (!f.exists()) {
             System.out.println("No leaderboard file found; starting empty leaderboard.");
             return;
         }
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
             StringBuilder sb = new StringBuilder();
             String ln;
             while ((ln = br.readLine()) != null) sb.append(ln.trim());
@@ -102,498 +642,2533 @@ public class Server {
                         String k = kv[0].trim();
                         String v = kv[1].trim();
                         if (k.startsWith("\"") && k.endsWith("\"")) k = k.substring(1, k.length() - 1);
-                        try { leaderboard.put(k, Double.parseDouble(v)); } catch (NumberFormatException ignore) {}
+                        try { leaderboard.offer(k, Math.round(Double.parseDouble(v) * 1000)); } catch (NumberFormatException ignore) {}
                     }
                 }
             }
-            System.out.println("Loaded leaderboard (" + leaderboard.size() + " records).");
         } catch (IOException e) {
             System.out.println("Failed to load leaderboard: " + e.getMessage());
         }
     }
 
-    private static synchronized void saveLeaderboard() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(LEADERBOARD_FILE))) {
-            pw.print("{");
-            boolean first = true;
-            for (Map.Entry<String, Double> e : leaderboard.entrySet()) {
-                if (!first) pw.print(",");
-                pw.print("\"" + e.getKey().replace("\"", "") + "\":" + String.format(Locale.US, "%.3f", e.getValue()));
-                first = false;
+    /**
+     * Applies every intact record in {@code f}; returns how many. Stops at the first
+     * short or corrupt record (a write cut off by a crash) and, if {@code repair},
+     * truncates it so appends continue after the last good record.
+     */
+    private static int replayJournal(File f, boolean repair) {
+        if (!f.exists()) return 0;
+        int n = 0;
+        long good = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            CRC32 crc = new CRC32();
+            byte[] rec = new byte[2 + 0xFFFF + 8];
+            while (true) {
+                int len;
+                try { len = in.readUnsignedShort(); } catch (EOFException e) { break; }
+                rec[0] = (byte) (len >>> 8);
+                rec[1] = (byte) len;
+                int sum;
+                try {
+                    in.readFully(rec, 2, len + 8);
+                    sum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(rec, 0, 2 + len + 8);
+                if ((int) crc.getValue() != sum) break;
+                long millis = ByteBuffer.wrap(rec, 2 + len, 8).getLong();
+                leaderboard.offer(new String(rec, 2, len, StandardCharsets.UTF_8), millis);
+                good += 2 + len + 8 + 4;
+                n++;
+            }
+            if (repair && raf.length() > good) {
+                System.out.println("Leaderboard journal: dropping " + (raf.length() - good) + " bytes of a torn record.");
+                raf.setLength(good);
             }
-            pw.println("}");
         } catch (IOException e) {
-            System.out.println("Failed to save leaderboard: " + e.getMessage());
+            System.out.println("Failed to replay " + f + ": " + e.getMessage());
         }
+        return n;
     }
 
-    private static String renderLeaderboard() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("\n=== LEADERBOARD (Race fastest times) ===\n");
-        List<Map.Entry<String, Double>> list = new ArrayList<>(leaderboard.entrySet());
-        list.sort(Comparator.comparingDouble(Map.Entry::getValue));
-        for (Map.Entry<String, Double> e : list) {
-            sb.append(e.getKey()).append(" - ").append(String.format(Locale.US, "%.2f", e.getValue())).append(" sec\n");
-        }
-        return sb.toString();
-    }
+    private static final class ScoreRecord {
+        final String name;
+        final long millis;
 
-    // ======= Map & treasures =======
-    private static synchronized void recalcGridAndTreasures() {
-        int total = clients.size() + bots.size();
-        if (total <= 4) gridSize = 10;
-        else if (total <= 10) gridSize = 15;
-        else gridSize = 20;
-        treasureCount = Math.max(BASE_TREASURES, Math.max(1, total));
+        ScoreRecord(String name, long millis) { this.name = name; this.millis = millis; }
     }
 
-    private static synchronized void initTreasures() {
-        treasures.clear();
-        for (int i = 0; i < treasureCount; i++) {
-            treasures.add(new int[]{RAND.nextInt(gridSize), RAND.nextInt(gridSize)});
-        }
-        System.out.println("Placed " + treasures.size() + " treasures on " + gridSize + "x" + gridSize);
+    /** Queues a new personal best for the journal writer; never blocks. */
+    private static void recordBest(String name, long millis) {
+        if (!journalQueue.offer(new ScoreRecord(name, millis))) journalOverflow.set(true);
     }
 
-    private static boolean inBounds(int x, int y) { return x >= 0 && y >= 0 && x < gridSize && y < gridSize; }
+    private static void startJournalWriter() {
+        Thread t = new Thread(Server::journalWriteLoop, "leaderboard-writer");
+        t.setDaemon(true);
+        journalWriter = t;
+        t.start();
+    }
 
-    private static char[][] buildGrid(boolean showTreasures) {
-        char[][] g = new char[gridSize][gridSize];
-        for (int r = 0; r < gridSize; r++) Arrays.fill(g[r], '.');
+    /** Console quit: lets the writer commit and fsync what is queued (up to 2 s). */
+    private static void stopJournalWriter() {
+        Thread t = journalWriter;
+        if (t == null) return;
+        journalWriter = null;
+        t.interrupt();
+        try { t.join(2000); } catch (InterruptedException ignored) {}
+    }
 
-        if (showTreasures) {
-            synchronized (treasures) {
-                for (int[] t : treasures) if (inBounds(t[0], t[1])) g[t[1]][t[0]] = 'T';
+    private static void journalWriteLoop() {
+        List<ScoreRecord> batch = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        while (true) {
+            boolean stopping = journalWriter != Thread.currentThread();
+            try {
+                if (stopping) {
+                    journalQueue.drainTo(batch);
+                } else {
+                    long wait = FSYNC_INTERVAL_MS - (System.currentTimeMillis() - lastSync);
+                    ScoreRecord first = unsynced && "interval".equalsIgnoreCase(FSYNC_POLICY)
+                            ? journalQueue.poll(Math.max(1, wait), TimeUnit.MILLISECONDS) : journalQueue.take();
+                    if (first != null) batch.add(first);
+                    journalQueue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                continue; // stopping: drain what is left
+            }
+            boolean full, lost = false;
+            leaderboardLock.lock();
+            try {
+                // no journal (a reopen failed): the store still has the batch, so compact instead
+                if (journalOut == null && !batch.isEmpty()) lost = true;
+                if (journalOut != null && !batch.isEmpty()) {
+                    recordBuf.reset();
+                    for (ScoreRecord r : batch) encodeRecord(r.name, r.millis);
+                    recordBuf.writeTo(journalOut);
+                    journalRecords += batch.size();
+                    unsynced = !"never".equalsIgnoreCase(FSYNC_POLICY);
+                }
+                long now = System.currentTimeMillis();
+                if (journalOut == null) unsynced = false; // a compaction closed it; nothing of ours left to sync
+                if (unsynced && (stopping || "always".equalsIgnoreCase(FSYNC_POLICY) || now - lastSync >= FSYNC_INTERVAL_MS)) {
+                    journalOut.getFD().sync();
+                    unsynced = false;
+                    lastSync = now;
+                }
+            } catch (IOException | RuntimeException e) {
+                // keep the writer alive; a dead one would silently stop journaling and overflow compactions
+                System.out.println("Failed to journal leaderboard records: " + e);
+                lost = !batch.isEmpty();
+            } finally {
+                full = journalRecords >= COMPACT_RECORDS;
+                leaderboardLock.unlock();
             }
+            batch.clear();
+            boolean overflow = journalOverflow.getAndSet(false);
+            if (overflow) System.out.println("Leaderboard journal queue full; compacting instead.");
+            if ((overflow || full || lost) && compactionQueued.compareAndSet(false, true)) {
+                COMPACTOR.execute(Server::compactLeaderboard);
+            }
+            if (stopping) return;
         }
+    }
 
-        for (ClientHandler c : clients) if (inBounds(c.x, c.y)) g[c.y][c.x] = c.name.charAt(0);
-        for (Bot b : bots) if (inBounds(b.x, b.y)) {
-            char cur = g[b.y][b.x];
-            if (cur == '.' || cur == 'T') g[b.y][b.x] = b.name.charAt(0);
-            else g[b.y][b.x] = '*';
-        }
-        return g;
+    /** Appends one checksummed record to recordBuf. */
+    private static void encodeRecord(String name, long millis) {
+        byte[] nm = name.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(nm.length, 0xFFFF);
+        byte[] rec = new byte[2 + len + 8 + 4];
+        rec[0] = (byte) (len >>> 8);
+        rec[1] = (byte) len;
+        System.arraycopy(nm, 0, rec, 2, len);
+        for (int i = 0; i < 8; i++) rec[2 + len + i] = (byte) (millis >>> (56 - 8 * i));
+        CRC32 crc = new CRC32();
+        crc.update(rec, 0, 2 + len + 8);
+        int sum = (int) crc.getValue();
+        for (int i = 0; i < 4; i++) rec[2 + len + 8 + i] = (byte) (sum >>> (24 - 8 * i));
+        recordBuf.write(rec, 0, rec.length);
     }
 
-    private static String renderClientMap() {
-    StringBuilder sb = new StringBuilder();
-    char[][] g = buildGrid(true);   
+    /** Folds the journal into a fresh snapshot. Runs on COMPACTOR only. */
+    private static void compactLeaderboard() {
+        compactionQueued.set(false);
+        File compacting = new File(COMPACTING_FILE);
+        leaderboardLock.lock();
+        try {
+            // an earlier, unfinished compaction keeps its file; this one covers it too
+            if (!compacting.exists()) {
+                try {
+                    if (journalOut != null) journalOut.close();
+                    Files.move(Paths.get(JOURNAL_FILE), compacting.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    System.out.println("Failed to rotate leaderboard journal: " + e.getMessage());
+                } finally {
+                    try {
+                        journalOut = new FileOutputStream(JOURNAL_FILE, true);
+                    } catch (IOException e) {
+                        journalOut = null;
+                        System.out.println("Failed to reopen leaderboard journal: " + e.getMessage());
+                    }
+                }
+            }
+            journalRecords = 0;
+        } finally {
+            leaderboardLock.unlock();
+        }
+        // the store already holds everything journaled so far; new records go to the new journal
+        File tmp = new File(LEADERBOARD_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+            w.write('{');
+            boolean[] first = {true};
+            IOException[] failed = {null};
+            leaderboard.forEach((name, millis) -> {
+                try {
+                    if (!first[0]) w.write(',');
+                    w.write("\"" + name.replace("\"", "") + "\":" + String.format(Locale.US, "%.3f", millis / 1000.0));
+                    first[0] = false;
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null) throw failed[0];
+            w.write("}" + LINE_SEP);
+            w.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            System.out.println("Failed to write leaderboard snapshot: " + e.getMessage());
+            return; // keep COMPACTING_FILE for the next attempt or startup
+        }
+        try {
+            Files.move(tmp.toPath(), Paths.get(LEADERBOARD_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(compacting.toPath());
+        } catch (IOException e) {
+            System.out.println("Failed to install leaderboard snapshot: " + e.getMessage());
+        }
+    }
 
-        sb.append("\n--- MAP ").append(gridSize).append("x").append(gridSize).append(" ---\n");
-        for (int r = 0; r < gridSize; r++) {
-            for (int c = 0; c < gridSize; c++) sb.append(g[r][c]).append(' ');
-            sb.append('\n');
+    /** One LEADERBOARD_PAGE of records; arg is the 1-based page number (blank means 1). */
+    private static String renderLeaderboard(String arg) {
+        int page;
+        try {
+            page = arg.isEmpty() ? 1 : Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            return "[SERVER] Use LEADERBOARD [page].";
         }
-        sb.append("Treasures left: ").append(treasures.size()).append('\n');
+        int total = leaderboard.size();
+        int pages = Math.max(1, (total + LEADERBOARD_PAGE - 1) / LEADERBOARD_PAGE);
+        page = Math.max(1, Math.min(page, pages));
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n=== LEADERBOARD (Race fastest times) page ").append(page).append('/').append(pages)
+                .append(", ").append(total).append(" players ===\n");
+        int[] pos = {(page - 1) * LEADERBOARD_PAGE};
+        leaderboard.page(pos[0], LEADERBOARD_PAGE, (name, millis) ->
+                sb.append(++pos[0]).append(". ").append(name).append(" - ").append(formatMillis(millis)).append(" sec\n"));
         return sb.toString();
     }
 
-    private static void printServerMap() {
-        char[][] g = buildGrid(true);
-        StringBuilder sb = new StringBuilder();
-        sb.append("\n--- SERVER MAP ").append(gridSize).append("x").append(gridSize).append(" ---\n");
-        for (int r = 0; r < gridSize; r++) {
-            for (int c = 0; c < gridSize; c++) sb.append(g[r][c]).append(' ');
-            sb.append('\n');
-        }
-        sb.append("Treasures left: ").append(treasures.size()).append('\n');
-        System.out.println(sb.toString());
-    }
-
-    private static void broadcastToClients(String msg) {
-        for (ClientHandler c : clients) c.send(msg);
-    }
-
-    // ======= Quiz manager =======
-    private static class QuizManager {
-        private final List<Object> turnList = new ArrayList<>(); // mix of ClientHandler and Bot
-        private int idx = 0;
-        private Timer turnTimer = null;
-        private volatile Integer currentAnswer = null;
-        private volatile Object activeParticipant = null;
-        private volatile int qA = 0, qB = 0;
-        private volatile char qOp = '+';
-
-        synchronized void buildTurnList() {
-            turnList.clear();
-            turnList.addAll(clients);
-            turnList.addAll(bots);
-            if (idx >= turnList.size()) idx = 0;
-        }
-
-        synchronized void start() {
-            buildTurnList();
-            if (turnList.isEmpty()) return;
-            broadcastToClients("[QUIZ] Starting quiz (turn-based).");
-            scheduleNextTurn(500);
-        }
-
-        synchronized void scheduleNextTurn(long delayMs) {
-            new Timer(true).schedule(new TimerTask() {
-                @Override public void run() { nextTurn(); }
-            }, delayMs);
-        }
-
-        synchronized void nextTurn() {
-            if (turnTimer != null) { turnTimer.cancel(); turnTimer = null; }
-            buildTurnList();
-            if (turnList.isEmpty()) return;
-            if (idx >= turnList.size()) idx = 0;
-            activeParticipant = turnList.get(idx);
-            idx = (idx + 1) % turnList.size();
-            String who = (activeParticipant instanceof ClientHandler) ? ((ClientHandler) activeParticipant).name : ((Bot) activeParticipant).name + " (BOT)";
-            broadcastToClients("[QUIZ] It is now " + who + "'s turn.");
-            generateQuestion();
-
-            if (activeParticipant instanceof ClientHandler) {
-                ClientHandler ch = (ClientHandler) activeParticipant;
-                ch.send("[QUESTION] " + currentQuestion());
-                ch.send("[QUESTION_PROMPT] Reply: ANSWER <number>");
-                for (ClientHandler other : clients) if (other != ch) other.send("[QUIZ] Waiting for " + ch.name + "'s answer.");
-            } else {
-                Bot b = (Bot) activeParticipant;
-                broadcastToClients("[QUIZ] " + b.name + " (BOT) is answering...");
-            }
-
-            // start per-turn timer
-            turnTimer = new Timer();
-            turnTimer.schedule(new TimerTask() {
-                @Override public void run() {
-                    synchronized (QuizManager.this) {
-                        String whoTimed = (activeParticipant instanceof ClientHandler) ? ((ClientHandler) activeParticipant).name : ((Bot) activeParticipant).name;
-                        broadcastToClients("[QUIZ] " + whoTimed + " timed out.");
-                        if (activeParticipant instanceof Bot) ((Bot) activeParticipant).onAnswerResult(false);
-                        scheduleNextTurn(500);
-                    }
-                }
-            }, QUIZ_TIME_LIMIT_MS);
+    private static String renderRank(String name) {
+        if (name.isEmpty()) return "[SERVER] Use RANK <name>.";
+        long[] millis = new long[1];
+        int rank = leaderboard.rank(name, millis);
+        if (rank == 0) return "[SERVER] " + name + " has no race time yet.";
+        return "[SERVER] " + name + " is #" + rank + " of " + leaderboard.size() + " - " + formatMillis(millis[0]) + " sec";
+    }
 
-            // if bot's turn, schedule its attempt
-            if (activeParticipant instanceof Bot) {
-                Bot b = (Bot) activeParticipant;
-                int delay = 500 + RAND.nextInt(1500);
-                new Timer(true).schedule(new TimerTask() {
-                    @Override public void run() { b.attemptAnswer(currentAnswer); }
-                }, delay);
-            }
+    private static String formatMillis(long millis) {
+        return String.format(Locale.US, "%.2f", millis / 1000.0);
+    }
+
+    // ======= Map & treasures =======
+    /**
+     * The playing field as a sparse grid of CHUNK x CHUNK chunks. A chunk exists only
+     * while it holds a treasure or an entity, and the directory allocates a row of
+     * chunk slots on first use, so a 10,000 x 10,000 world with a few dozen players
+     * costs a few dozen chunks. Each chunk indexes its treasures as a bitset and its
+     * occupants as per-cell counts, so moves and pickups touch one chunk and a render
+     * skips absent chunks as runs of '.'.
+     *
+     * A cell shows its sole occupant's initial, '*' for several, else 'T' or '.'.
+     * Changed cells are queued with the symbol they had at the last publish, which
+     * advanceMapVersion() turns into a delta. Guarded by treasureLock; the side
+     * changes only on reset or resize, which both force a snapshot, so cell indices
+     * (y * side + x) from before and after never meet in one delta.
+     *
+     * The treasure bitsets are also reachable from a directory that freeze() hands
+     * to a WorldSnapshot. Freezing bumps the epoch; a later pickup clones the one
+     * bitset and directory row it touches (path copying) instead of mutating what
+     * readers may still hold.
+     */
+    private static final class World {
+        static final int SHIFT = 6, CHUNK = 1 << SHIFT, MASK = CHUNK - 1;
+        static final int MAX_SIDE = 46_340; // side * side must fit a cell index
+
+        private static final class Chunk {
+            long[] treasure = new long[CHUNK * CHUNK / 64];
+            int treasureEpoch;         // epoch the bitset was created in; older ones are frozen
+            int treasures = 0;
+            int[] occupants, symbols;  // allocated on first entry; symbols sums the occupants' initials
+            int entities = 0;
+            final long[] queued = new long[CHUNK * CHUNK / 64];
+
+            boolean empty() { return treasures == 0 && entities == 0; }
         }
 
-        private void generateQuestion() {
-            qA = RAND.nextInt(10) + 1;
-            qB = RAND.nextInt(10) + 1;
-            int op = RAND.nextInt(4);
-            switch (op) {
-                case 0: qOp = '+'; currentAnswer = qA + qB; break;
-                case 1: qOp = '-'; currentAnswer = qA - qB; break;
-                case 2: qOp = '*'; currentAnswer = qA * qB; break;
-                default:
-                    // produce integer division with dividend divisible by divisor
-                    qB = RAND.nextInt(4) + 1;
-                    int multiplier = RAND.nextInt(5) + 1;
-                    qA = qB * multiplier;
-                    qOp = '/';
-                    currentAnswer = qA / qB;
-                    break;
+        private int side = 0, chunksPerSide = 0;
+        private Chunk[][] rows = new Chunk[0][];
+        private int liveChunks = 0;
+        private volatile int treasureCount = 0;
+        private boolean changed = true;    // anything a snapshot shows, since the last freeze()
+
+        private long[][][] treasureDir = new long[0][][]; // [chunk row][chunk col] -> that chunk's bitset
+        private int[] rowEpoch = new int[0];
+        private int dirEpoch = 0, epoch = 1;
+
+        private int[] dirty = new int[16];
+        private char[] before = new char[16];
+        private int dirtyCount = 0;
+        private boolean reshaped = true;   // publish a snapshot rather than a delta
+
+        /** An empty world; callers then place treasures and re-enter every entity. */
+        void reset(int newSide) {
+            side = newSide;
+            chunksPerSide = (newSide + MASK) >>> SHIFT;
+            rows = new Chunk[chunksPerSide][];
+            liveChunks = 0;
+            treasureCount = 0;
+            dirtyCount = 0;
+            reshaped = true;
+            changed = true;
+            treasureDir = new long[chunksPerSide][][];
+            rowEpoch = new int[chunksPerSide];
+            dirEpoch = epoch;
+        }
+
+        /**
+         * Changes the side in place, keeping the treasures that still fit. Chunks sit at
+         * fixed chunk coordinates, so this rebuilds only the directory: O(live chunks),
+         * plus a scan of each chunk cut by the new edge. Entities must be off the world.
+         * Returns how many treasures fell past the new edge, for the caller to re-place.
+         */
+        int resize(int newSide) {
+            clearDirty(); // frees chunks the departed entities left empty
+            Chunk[][] old = rows;
+            side = newSide;
+            chunksPerSide = (newSide + MASK) >>> SHIFT;
+            rows = new Chunk[chunksPerSide][];
+            liveChunks = 0;
+            treasureCount = 0;
+            treasureDir = new long[chunksPerSide][][];
+            rowEpoch = new int[chunksPerSide];
+            dirEpoch = epoch;
+            int trimmed = 0;
+            for (int cy = 0; cy < old.length; cy++) {
+                Chunk[] row = old[cy];
+                if (row == null) continue;
+                for (int cx = 0; cx < row.length; cx++) {
+                    Chunk ch = row[cx];
+                    if (ch == null) continue;
+                    int x0 = cx << SHIFT, y0 = cy << SHIFT;
+                    if (x0 + CHUNK > newSide || y0 + CHUNK > newSide) trimmed += trim(ch, x0, y0);
+                    if (cx >= chunksPerSide || cy >= chunksPerSide || ch.empty()) continue;
+                    if (rows[cy] == null) rows[cy] = new Chunk[chunksPerSide];
+                    rows[cy][cx] = ch;
+                    link(x0, y0, ch.treasure);
+                    liveChunks++;
+                    treasureCount += ch.treasures;
+                }
             }
+            reshaped = true;
+            changed = true;
+            return trimmed;
         }
 
-        private String currentQuestion() {
-            return qA + " " + qOp + " " + qB + " = ?";
+        /** Drops a chunk's treasures past the (new) edge of the world; returns how many. */
+        private int trim(Chunk ch, int x0, int y0) {
+            int dropped = 0;
+            for (int i = 0; i < CHUNK * CHUNK; i++) {
+                if (x0 + (i & MASK) < side && y0 + (i >>> SHIFT) < side) continue;
+                if ((ch.treasure[i >>> 6] & (1L << i)) == 0) continue;
+                if (ch.treasureEpoch != epoch) { ch.treasure = ch.treasure.clone(); ch.treasureEpoch = epoch; }
+                ch.treasure[i >>> 6] &= ~(1L << i);
+                ch.treasures--;
+                dropped++;
+            }
+            return dropped;
         }
 
-        synchronized void receiveClientAnswer(ClientHandler ch, String text) {
-            if (ch != activeParticipant) { ch.send("[QUIZ] Not your turn."); return; }
-            if (currentAnswer == null) { ch.send("[QUIZ] No active question."); return; }
-            int v;
-            try { v = Integer.parseInt(text.trim()); } catch (NumberFormatException e) { ch.send("[QUIZ] Send a numeric answer."); return; }
-            if (turnTimer != null) { turnTimer.cancel(); turnTimer = null; }
-            if (v == currentAnswer) {
-                broadcastToClients("[QUIZ] " + ch.name + " answered correctly.");
-                ch.canMove = true;
-                ch.send("[QUIZ] You may move now (W/A/S/D). Movement has no time limit.");
-                // when client moves, they must call notifyMoveConsumed()
-            } else {
-                ch.send("[QUIZ] Wrong answer.");
-                scheduleNextTurn(500);
+        /** Every treasure's cell ({@code y * side + x}), in no particular order. */
+        int[] treasureCells() {
+            int[] out = new int[treasureCount];
+            int n = 0;
+            for (int cy = 0; cy < rows.length; cy++) {
+                Chunk[] row = rows[cy];
+                if (row == null) continue;
+                for (int cx = 0; cx < row.length; cx++) {
+                    Chunk ch = row[cx];
+                    if (ch == null || ch.treasures == 0) continue;
+                    for (int w = 0; w < ch.treasure.length; w++) {
+                        for (long bits = ch.treasure[w]; bits != 0; bits &= bits - 1) {
+                            int i = w << 6 | Long.numberOfTrailingZeros(bits);
+                            out[n++] = ((cy << SHIFT) + (i >>> SHIFT)) * side + (cx << SHIFT) + (i & MASK);
+                        }
+                    }
+                }
             }
+            return out;
         }
 
-        synchronized void notifyMoveConsumed() {
-            scheduleNextTurn(500);
+        /** Hands out the treasure directory as it stands; later changes copy what they touch. */
+        long[][][] freeze() {
+            changed = false;
+            epoch++;
+            return treasureDir;
         }
-    } // end QuizManager
 
-    // ======= ClientHandler (human) =======
-    private static class ClientHandler implements Runnable {
-        final Socket socket;
-        BufferedReader in;
-        PrintWriter out;
-        String name = "Player";
-        int x = 0, y = 0;
-        boolean canMove = false;
-        long startMillis = 0L;
+        /** Points the directory at a chunk's (new) bitset, copying the frozen path to it. */
+        private void link(int x, int y, long[] bits) {
+            int cy = y >>> SHIFT;
+            if (dirEpoch != epoch) { treasureDir = treasureDir.clone(); dirEpoch = epoch; }
+            long[][] row = treasureDir[cy];
+            if (row == null) row = new long[chunksPerSide][];
+            else if (rowEpoch[cy] != epoch) row = row.clone();
+            rowEpoch[cy] = epoch;
+            treasureDir[cy] = row;
+            row[x >>> SHIFT] = bits;
+        }
 
-        ClientHandler(Socket s) { this.socket = s; }
+        private long[] writableTreasure(int x, int y, Chunk ch) {
+            if (ch.treasureEpoch != epoch) {
+                ch.treasure = ch.treasure.clone();
+                ch.treasureEpoch = epoch;
+                link(x, y, ch.treasure);
+            }
+            return ch.treasure;
+        }
 
-        void send(String msg) { try { if (out != null) out.println(msg); } catch (Exception ignored) {} }
+        int side() { return side; }
+        int treasureCount() { return treasureCount; }
+        int liveChunks() { return liveChunks; }
 
-        @Override public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+        private boolean inside(int x, int y) { return x >= 0 && y >= 0 && x < side && y < side; }
 
-                send("Enter your name:");
-                String nm = in.readLine();
-                name = (nm != null && !nm.trim().isEmpty()) ? nm.trim() : ("Player" + RAND.nextInt(1000));
-
-                clients.add(this);
-                System.out.println("Human joined: " + name + " (humans: " + clients.size() + ")");
-
-                synchronized (Server.class) {
-                    recalcGridAndTreasures();
-                    if (!gameStarted && clients.size() == 1) {
-                        send("You are the host. Choose mode: 'race' or 'quiz' (type exactly):");
-                        String choice = in.readLine();
-                        mode = ("quiz".equalsIgnoreCase(choice)) ? "quiz" : "race";
-                        gameStarted = true;
-                        recalcGridAndTreasures();
-                        initTreasures();
-                        raceStartMillis = System.currentTimeMillis();
-                        if ("quiz".equals(mode)) quizManager.start();
-                    } else if (!gameStarted) {
-                        mode = "race";
-                        gameStarted = true;
-                        recalcGridAndTreasures();
-                        initTreasures();
-                        raceStartMillis = System.currentTimeMillis();
-                    }
+        private Chunk chunk(int x, int y) {
+            Chunk[] row = rows[y >>> SHIFT];
+            return row == null ? null : row[x >>> SHIFT];
+        }
 
-                    if ("quiz".equals(mode) && clients.size() == 1 && bots.isEmpty()) {
-    for (int i = 1; i <= 2; i++) {
-        Bot b = new Bot("Bot" + i, 0.35);
-        bots.add(b);
-        new Thread(b).start();
-    }
-}
+        private Chunk chunkOrCreate(int x, int y) {
+            Chunk[] row = rows[y >>> SHIFT];
+            if (row == null) row = rows[y >>> SHIFT] = new Chunk[chunksPerSide];
+            Chunk ch = row[x >>> SHIFT];
+            if (ch == null) {
+                ch = row[x >>> SHIFT] = new Chunk();
+                ch.treasureEpoch = epoch;
+                link(x, y, ch.treasure);
+                liveChunks++;
+            }
+            return ch;
+        }
 
-                }
+        private void dropIfEmpty(int x, int y, Chunk ch) {
+            if (!ch.empty()) return;
+            for (long q : ch.queued) if (q != 0) return; // freed after the next publish instead
+            rows[y >>> SHIFT][x >>> SHIFT] = null;
+            link(x, y, null);
+            liveChunks--;
+        }
 
-                x = RAND.nextInt(gridSize);
-                y = RAND.nextInt(gridSize);
-                startMillis = System.currentTimeMillis();
-                send("[SERVER] Welcome " + name + "! You spawned at (" + x + "," + y + "). Mode: " + mode.toUpperCase());
-                send(renderClientMap());
-                broadcastToClients("[SERVER] " + name + " joined.");
+        private static int local(int x, int y) { return ((y & MASK) << SHIFT) | (x & MASK); }
 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-                    if ("exit".equalsIgnoreCase(line)) break;
-                    if ("map".equalsIgnoreCase(line)) { send(renderClientMap()); continue; }
-                    if ("leaderboard".equalsIgnoreCase(line)) { send(renderLeaderboard()); continue; }
+        char symbolAt(int x, int y) {
+            if (!inside(x, y)) return '.';
+            Chunk ch = chunk(x, y);
+            return ch == null ? '.' : symbol(ch, local(x, y));
+        }
 
-                    if ("race".equalsIgnoreCase(mode)) {
-                        handleRaceCommand(line);
-                    } else { // quiz mode
-    if (line.toLowerCase().startsWith("answer ")) {
-        String[] parts = line.split(" ", 2);
-        if (parts.length < 2) { send("[QUIZ] Invalid ANSWER format."); continue; }
-        quizManager.receiveClientAnswer(this, parts[1]);
-        continue;
-    }
+        private static char symbol(Chunk ch, int i) {
+            int n = ch.occupants == null ? 0 : ch.occupants[i];
+            if (n > 1) return '*';
+            if (n == 1) return (char) ch.symbols[i];
+            return (ch.treasure[i >>> 6] & (1L << i)) != 0 ? 'T' : '.';
+        }
 
-    // ✅ Handle movement after correct answer
-    if (line.length() == 1 && "wasdWASD".contains(line)) {
-        char d = Character.toLowerCase(line.charAt(0));
-        if (!canMove) {
-            send("[QUIZ] You cannot move now. Answer on your turn first.");
-            continue;
+        boolean hasTreasure(int x, int y) {
+            if (!inside(x, y)) return false;
+            Chunk ch = chunk(x, y);
+            int i = local(x, y);
+            return ch != null && (ch.treasure[i >>> 6] & (1L << i)) != 0;
         }
 
-        performMove(d);
-        checkTreasureForClient(this);           // ✅ Detect treasure after move
-        broadcastToClients(renderClientMap());  // ✅ Update map for all players
-        canMove = false;
+        /** @return false if the cell is off the world or already holds a treasure */
+        boolean addTreasure(int x, int y) {
+            if (!inside(x, y) || hasTreasure(x, y)) return false;
+            Chunk ch = chunkOrCreate(x, y);
+            int i = local(x, y);
+            char was = symbol(ch, i);
+            writableTreasure(x, y, ch)[i >>> 6] |= 1L << i;
+            ch.treasures++;
+            treasureCount++;
+            changed(ch, x, y, i, was);
+            return true;
+        }
 
-        quizManager.notifyMoveConsumed();       // ✅ Move to next player's turn
-        continue;
-    }
+        /** Removes the treasure at (x, y), if any. */
+        boolean claimTreasure(int x, int y) {
+            if (!hasTreasure(x, y)) return false;
+            Chunk ch = chunk(x, y);
+            int i = local(x, y);
+            char was = symbol(ch, i);
+            writableTreasure(x, y, ch)[i >>> 6] &= ~(1L << i);
+            ch.treasures--;
+            treasureCount--;
+            changed(ch, x, y, i, was);
+            dropIfEmpty(x, y, ch);
+            return true;
+        }
 
-    send("[SERVER] Unknown command in quiz mode. Use ANSWER <number>, W/A/S/D (if allowed), MAP, LEADERBOARD, EXIT.");
-}
-                }
-            } catch (IOException e) {
-                System.out.println("Connection lost for " + name + ": " + e.getMessage());
-            } finally { cleanup(); }
+        /** Puts an entity on (x, y); returns its cell, or -1 when off the world. */
+        int enter(int x, int y, char symbol) {
+            if (!inside(x, y)) return -1;
+            Chunk ch = chunkOrCreate(x, y);
+            if (ch.occupants == null) { ch.occupants = new int[CHUNK * CHUNK]; ch.symbols = new int[CHUNK * CHUNK]; }
+            int i = local(x, y);
+            char was = symbol(ch, i);
+            ch.occupants[i]++;
+            ch.symbols[i] += symbol;
+            ch.entities++;
+            changed(ch, x, y, i, was);
+            return y * side + x;
         }
 
-        private void handleRaceCommand(String line) {
-            if (line.length() == 1 && "wasdWASD".contains(line)) {
-                char d = Character.toLowerCase(line.charAt(0));
-                performMove(d);
-                checkTreasureForClient(this);
-                broadcastToClients(renderClientMap());
-            } else {
-                send("[SERVER] Unknown command in race mode. Use W/A/S/D, MAP, LEADERBOARD, EXIT.");
-            }
+        void leave(int cell, char symbol) {
+            if (cell < 0 || side == 0 || cell >= side * side) return;
+            int x = cell % side, y = cell / side;
+            Chunk ch = chunk(x, y);
+            if (ch == null || ch.occupants == null) return;
+            int i = local(x, y);
+            char was = symbol(ch, i);
+            ch.occupants[i]--;
+            ch.symbols[i] -= symbol;
+            ch.entities--;
+            changed(ch, x, y, i, was);
+            dropIfEmpty(x, y, ch);
         }
 
-        private void performMove(char d) {
-            switch (d) {
-                case 'w': y = Math.max(0, y - 1); break;
-                case 's': y = Math.min(gridSize - 1, y + 1); break;
-                case 'a': x = Math.max(0, x - 1); break;
-                case 'd': x = Math.min(gridSize - 1, x + 1); break;
-            }
+        int move(int cell, int x, int y, char symbol) {
+            leave(cell, symbol);
+            return enter(x, y, symbol);
         }
 
-        private void checkTreasureForClient(ClientHandler c) {
-            synchronized (treasures) {
-                Iterator<int[]> it = treasures.iterator();
-                while (it.hasNext()) {
-                    int[] t = it.next();
-                    if (t[0] == c.x && t[1] == c.y) {
-                        it.remove();
-                        broadcastToClients("[SERVER] " + c.name + " found a treasure!");
-                        printServerMap();
-                        if ("race".equals(mode) && treasures.isEmpty()) {
-    double timeSec = (System.currentTimeMillis() - c.startMillis) / 1000.0;
-    synchronized (leaderboard) {
-        Double prev = leaderboard.get(c.name);
-        if (prev == null || timeSec < prev) { leaderboard.put(c.name, timeSec); saveLeaderboard(); }
-    }
-    broadcastToClients("[RESULT] " + c.name + " finished the race in " + String.format(Locale.US, "%.2f", timeSec) + " sec");
-    broadcastToClients("[FINISH]:" + c.name + ":" + String.format(Locale.US, "%.3f", timeSec));
-    broadcastToClients("[SERVER] All treasures found! Race over 🏁");
-    gameStarted = false; // stop the race
-    return; // DO NOT respawn new treasures
-}
- else if (treasures.isEmpty()) {
-                            recalcGridAndTreasures();
-                            initTreasures();
-                            printServerMap();
-                            broadcastToClients(renderClientMap());
-                        }
-                        break;
-                    }
-                }
+        private void changed(Chunk ch, int x, int y, int i, char was) {
+            changed = true;
+            if (reshaped || (ch.queued[i >>> 6] & (1L << i)) != 0) return;
+            if (symbol(ch, i) == was) return;
+            ch.queued[i >>> 6] |= 1L << i;
+            if (dirtyCount == dirty.length) {
+                dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+                before = Arrays.copyOf(before, dirtyCount * 2);
             }
+            dirty[dirtyCount] = y * side + x;
+            before[dirtyCount++] = was;
         }
 
-        private void cleanup() {
-            try { socket.close(); } catch (IOException ignored) {}
-            clients.remove(this);
-            broadcastToClients("[SERVER] " + name + " left.");
-            synchronized (Server.class) {
-                if (clients.size() == 1 && bots.isEmpty()) {
-                    for (int i = 1; i <= 2; i++) { Bot b = new Bot("Bot" + i, 0.35); bots.add(b); new Thread(b).start(); }
-                } else if (clients.size() > 1 && !bots.isEmpty()) {
-                    for (Bot b : bots) b.active = false;
-                    bots.clear();
-                }
-                recalcGridAndTreasures();
-                initTreasures();
+        /** Forgets queued changes once published, freeing chunks that emptied meanwhile. */
+        void clearDirty() {
+            for (int d = 0; d < dirtyCount; d++) {
+                int x = dirty[d] % side, y = dirty[d] / side;
+                Chunk ch = chunk(x, y);
+                if (ch == null) continue;
+                int i = local(x, y);
+                ch.queued[i >>> 6] &= ~(1L << i);
+                dropIfEmpty(x, y, ch);
             }
+            dirtyCount = 0;
+            reshaped = false;
         }
-    } // end ClientHandler
 
-    // ======= Bot class =======
-    private static class Bot implements Runnable {
-        final String name;
-        final double correctProb;
-        volatile int x, y;
-        volatile boolean canMove = false;
-        volatile boolean active = true;
+    }
 
-        Bot(String name, double correctProb) {
-            this.name = name;
-            this.correctProb = correctProb;
-            this.x = RAND.nextInt(Math.max(1, gridSize));
-            this.y = RAND.nextInt(Math.max(1, gridSize));
-        }
-
-        void attemptAnswer(Integer correctAnswer) {
-            if (!active) return;
-            boolean correct = RAND.nextDouble() < correctProb;
-            if (correct) {
-                broadcastToClients("[QUIZ] " + name + " (BOT) answered correctly.");
-                canMove = true;
-                new Timer(true).schedule(new TimerTask() {
-                    @Override public void run() { performBotMoveAfterQuiz(); }
-                }, 700 + RAND.nextInt(800));
-            } else {
-                broadcastToClients("[QUIZ] " + name + " (BOT) answered incorrectly.");
-                quizManager.scheduleNextTurn(400);
-            }
+    /**
+     * Every player and bot on one room's map as parallel primitive arrays, packed into
+     * slots [0, size) so a pass over thousands of entities is a plain indexed loop with
+     * no iterator or object per entity. Owners keep a stable id; removal moves the last
+     * slot into the hole and repoints its id. Keeps each entity's world cell in step
+     * with its position. Guarded by the room's treasureLock.
+     */
+    private static final class Entities {
+        private int size = 0;
+        private int[] ids = new int[16];      // slot -> id
+        private int[] xs = new int[16];
+        private int[] ys = new int[16];
+        private int[] cells = new int[16];    // world cell, -1 when off the world
+        private char[] symbols = new char[16];
+        private int[] slotOf = new int[16];   // id -> slot, -1 for a free id
+        private int[] freeIds = new int[16];
+        private int freeCount = 0, nextId = 0;
+
+        /** Registers an entity at (x, y) and puts it on the world; returns its id. */
+        int add(char symbol, int x, int y, World world) {
+            if (size == ids.length) grow();
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id >= slotOf.length) slotOf = Arrays.copyOf(slotOf, slotOf.length * 2);
+            int s = size++;
+            slotOf[id] = s;
+            ids[s] = id; xs[s] = x; ys[s] = y; symbols[s] = symbol;
+            cells[s] = world.enter(x, y, symbol);
+            return id;
         }
 
-        void performBotMoveAfterQuiz() {
-            if (!canMove) { quizManager.notifyMoveConsumed(); return; }
-            char[] dirs = new char[]{'w','a','s','d'};
-            char d = dirs[RAND.nextInt(dirs.length)];
-            switch (d) {
-                case 'w': y = Math.max(0, y - 1); break;
-                case 's': y = Math.min(gridSize - 1, y + 1); break;
-                case 'a': x = Math.max(0, x - 1); break;
-                case 'd': x = Math.min(gridSize - 1, x + 1); break;
-            }
-            canMove = false;
-            broadcastToClients("[BOT MOVE] " + name + " moved " + Character.toUpperCase(d) + " to (" + x + "," + y + ")");
-            checkTreasureForBot(this);
-            broadcastToClients(renderClientMap());
-            quizManager.notifyMoveConsumed();
+        void remove(int id, World world) {
+            int s = slotOf[id], last = --size;
+            world.leave(cells[s], symbols[s]);
+            ids[s] = ids[last]; xs[s] = xs[last]; ys[s] = ys[last];
+            cells[s] = cells[last]; symbols[s] = symbols[last];
+            slotOf[ids[s]] = s;
+            slotOf[id] = -1;
+            if (freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            freeIds[freeCount++] = id;
         }
 
-        void onAnswerResult(boolean correct) {
-            if (correct) broadcastToClients("[BOT] " + name + " (BOT) got it right.");
-            else broadcastToClients("[BOT] " + name + " (BOT) got it wrong.");
+        void moveTo(int id, int x, int y, World world) {
+            int s = slotOf[id];
+            xs[s] = x; ys[s] = y;
+            cells[s] = world.move(cells[s], x, y, symbols[s]);
         }
 
-        @Override public void run() {
-            while (active) {
-                try { Thread.sleep(500); } catch (InterruptedException ignored) {}
-            }
-        }
-    } // end Bot
-
-    private static void checkTreasureForBot(Bot b) {
-        synchronized (treasures) {
-            Iterator<int[]> it = treasures.iterator();
-            while (it.hasNext()) {
-                int[] t = it.next();
-                if (t[0] == b.x && t[1] == b.y) {
-                    it.remove();
-                    String msg = b.name + " (BOT) found a treasure!";
-                    broadcastToClients("[SERVER] " + msg);
-                    printServerMap();
-                    if ("race".equals(mode) && treasures.isEmpty()) {
-                        double tsec = (System.currentTimeMillis() - raceStartMillis) / 1000.0;
-                        synchronized (leaderboard) {
-                            Double prev = leaderboard.get(b.name);
-                            if (prev == null || tsec < prev) { leaderboard.put(b.name, tsec); saveLeaderboard(); }
-                        }
-                        broadcastToClients("[RESULT] " + b.name + " finished the race in " + String.format(Locale.US, "%.2f", tsec) + " sec");
-                        broadcastToClients("[FINISH]:" + b.name + ":" + String.format(Locale.US, "%.3f", tsec));
-                        recalcGridAndTreasures();
-                        initTreasures();
-                        printServerMap();
-                        broadcastToClients(renderClientMap());
-                    } else if (treasures.isEmpty()) {
-                        recalcGridAndTreasures();
-                        initTreasures();
-                        printServerMap();
-                        broadcastToClients(renderClientMap());
+        int x(int id) { return xs[slotOf[id]]; }
+
+        int y(int id) { return ys[slotOf[id]]; }
+
+        int size() { return size; }
+
+        /** Takes everyone off the world, ahead of world.resize(). */
+        void leaveAll(World world) {
+            for (int s = 0; s < size; s++) { world.leave(cells[s], symbols[s]); cells[s] = -1; }
+        }
+
+        /** Pulls positions past the edge of a side x side world back onto it. */
+        void clampInto(int side) {
+            for (int s = 0; s < size; s++) { xs[s] = Math.min(xs[s], side - 1); ys[s] = Math.min(ys[s], side - 1); }
+        }
+
+        /** Puts everyone back after world.reset(); positions off the new world are not drawn. */
+        void reenter(World world) {
+            for (int s = 0; s < size; s++) cells[s] = world.enter(xs[s], ys[s], symbols[s]);
+        }
+
+        /** Cells ({@code y * side + x}) of the entities inside a side x side world. */
+        int[] cellsWithin(int side) {
+            int[] out = new int[size];
+            int n = 0;
+            for (int s = 0; s < size; s++) if (xs[s] < side && ys[s] < side) out[n++] = ys[s] * side + xs[s];
+            return n == size ? out : Arrays.copyOf(out, n);
+        }
+
+        /** Entities on the world as sorted (cell << 16 | symbol) keys, for a WorldSnapshot. */
+        long[] keys() {
+            long[] out = new long[size];
+            int n = 0;
+            for (int s = 0; s < size; s++) if (cells[s] >= 0) out[n++] = (long) cells[s] << 16 | symbols[s];
+            if (n < size) out = Arrays.copyOf(out, n);
+            Arrays.sort(out);
+            return out;
+        }
+
+        private void grow() {
+            int cap = ids.length * 2;
+            ids = Arrays.copyOf(ids, cap); xs = Arrays.copyOf(xs, cap); ys = Arrays.copyOf(ys, cap);
+            cells = Arrays.copyOf(cells, cap); symbols = Arrays.copyOf(symbols, cap);
+        }
+    }
+
+    /**
+     * Picks treasure cells without replacement: Floyd's algorithm draws {@code count}
+     * distinct indices from the cells outside the exclusion zones in O(count) expected
+     * time, tracking picks in a primitive open-addressed set rather than boxed Integers.
+     * An index maps to a cell by skipping the sorted excluded cells before it, so
+     * exclusion costs a binary search per pick instead of a filtered copy of the world.
+     */
+    private static final class Placement {
+        private Placement() {}
+
+        /**
+         * Up to {@code count} distinct cells ({@code y * side + x}) of a side x side world,
+         * none within {@code radius} (Chebyshev) of a cell in {@code centers}.
+         */
+        static int[] sample(SplittableRandom rng, int side, int count, int[] centers, int radius) {
+            return sample(rng, side, count, centers, radius, new int[0]);
+        }
+
+        /** Like the above, also skipping the cells in {@code taken} (any order, e.g. treasures already placed). */
+        static int[] sample(SplittableRandom rng, int side, int count, int[] centers, int radius, int[] taken) {
+            int[] excluded = zones(side, centers, radius, taken);
+            long free = (long) side * side - excluded.length;
+            int k = (int) Math.max(0, Math.min(count, free));
+            int[] picks = new int[k];
+            if (k == 0) return picks;
+            int n = (int) free;
+            int[] table = new int[Integer.highestOneBit(Math.max(2, k * 2 - 1)) << 1];
+            Arrays.fill(table, -1);
+            int mask = table.length - 1;
+            for (int j = n - k, p = 0; j < n; j++) {
+                int t = rng.nextInt(j + 1);
+                if (!add(table, mask, t)) { add(table, mask, j); t = j; } // t taken: j is new by construction
+                picks[p++] = toCell(t, excluded);
+            }
+            return picks;
+        }
+
+        /** Adds {@code v} to the set; false if it was already there. */
+        private static boolean add(int[] table, int mask, int v) {
+            for (int i = (v * 0x9E3779B9) >>> 1 & mask; ; i = (i + 1) & mask) {
+                if (table[i] == v) return false;
+                if (table[i] == -1) { table[i] = v; return true; }
+            }
+        }
+
+        /** The index-th free cell: index plus the number of excluded cells at or below the result. */
+        private static int toCell(int index, int[] excluded) {
+            // excluded[j] - j never decreases, so find how many excluded cells precede it
+            int lo = 0, hi = excluded.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (excluded[mid] - mid <= index) lo = mid + 1; else hi = mid;
+            }
+            return index + lo;
+        }
+
+        /** Sorted, distinct cells within {@code radius} of any center, clipped to the world, plus {@code taken}. */
+        private static int[] zones(int side, int[] centers, int radius, int[] taken) {
+            if (radius < 0) centers = new int[0];
+            int w = 2 * radius + 1;
+            int[] cells = Arrays.copyOf(taken, taken.length + centers.length * w * w);
+            int n = taken.length;
+            for (int c : centers) {
+                int cx = c % side, cy = c / side;
+                for (int y = Math.max(0, cy - radius); y <= Math.min(side - 1, cy + radius); y++) {
+                    for (int x = Math.max(0, cx - radius); x <= Math.min(side - 1, cx + radius); x++) cells[n++] = y * side + x;
+                }
+            }
+            Arrays.sort(cells, 0, n);
+            int m = 0;
+            for (int i = 0; i < n; i++) if (m == 0 || cells[i] != cells[m - 1]) cells[m++] = cells[i];
+            return Arrays.copyOf(cells, m);
+        }
+    }
+
+    /**
+     * An immutable picture of the world as of one published map version: the frozen
+     * treasure directory, every entity on the map sorted by cell, and the match
+     * settings. publishWorld() swaps in a new one under treasureLock; renders, the
+     * admin map and map frames read {@link #worldSnapshot} without locking and can never
+     * see a half-applied move or a grid size that disagrees with the cells.
+     */
+    private static final class WorldSnapshot {
+        final long version;
+        final int side, treasures;
+        final String mode;
+        final boolean started;
+        private final long[][][] treasureDir;
+        private final long[] entities;   // (cell << 16) | symbol, sorted, so a window row is one run
+
+        WorldSnapshot(long version, int side, int treasures, String mode, boolean started,
+                      long[][][] treasureDir, long[] entities) {
+            this.version = version; this.side = side; this.treasures = treasures;
+            this.mode = mode; this.started = started;
+            this.treasureDir = treasureDir; this.entities = entities;
+        }
+
+        static final WorldSnapshot EMPTY = new WorldSnapshot(0L, 0, 0, "race", false, new long[0][][], new long[0]);
+
+        /** The w x w window at (x0, y0), row-major; visits only the chunks it overlaps. */
+        char[] cells(int x0, int y0, int w) {
+            char[] out = new char[w * w];
+            Arrays.fill(out, '.');
+            int x1 = Math.min(side, x0 + w), y1 = Math.min(side, y0 + w);
+            if (x1 <= x0 || y1 <= y0) return out;
+            for (int cy = y0 >>> World.SHIFT; cy <= (y1 - 1) >>> World.SHIFT; cy++) {
+                long[][] row = treasureDir[cy];
+                for (int cx = x0 >>> World.SHIFT; cx <= (x1 - 1) >>> World.SHIFT; cx++) {
+                    long[] bits = row == null ? null : row[cx];
+                    int ya = Math.max(y0, cy << World.SHIFT), yb = Math.min(y1, (cy + 1) << World.SHIFT);
+                    int xa = Math.max(x0, cx << World.SHIFT), xb = Math.min(x1, (cx + 1) << World.SHIFT);
+                    if (bits != null) {
+                        for (int y = ya; y < yb; y++) {
+                            for (int x = xa; x < xb; x++) {
+                                int i = World.local(x, y);
+                                if ((bits[i >>> 6] & (1L << i)) != 0) out[(y - y0) * w + (x - x0)] = 'T';
+                            }
+                        }
+                    }
+                }
+            }
+            for (int y = y0; y < y1; y++) {
+                long first = (long) (y * side + x0) << 16, end = (long) (y * side + x1) << 16;
+                int e = Arrays.binarySearch(entities, first);
+                for (e = e < 0 ? -e - 1 : e; e < entities.length && entities[e] < end; e++) {
+                    int k = (y - y0) * w + (int) (entities[e] >>> 16) - y * side - x0;
+                    char prev = out[k];
+                    out[k] = prev == '.' || prev == 'T' ? (char) entities[e] : '*';
+                }
+            }
+            return out;
+        }
+
+        /** The window as text-map rows, two columns per cell. */
+        void appendRows(StringBuilder sb, int x0, int y0, int w) {
+            char[] cells = cells(x0, y0, w);
+            int x1 = Math.min(side, x0 + w) - x0, y1 = Math.min(side, y0 + w) - y0;
+            for (int r = 0; r < y1; r++) {
+                for (int c = 0; c < x1; c++) sb.append(cells[r * w + c]).append(' ');
+                sb.append('\n');
+            }
+        }
+    }
+
+    /** A player's w x w window onto the world at (x0, y0). Immutable; w == 0 before the first fit. */
+    private static final class Viewport {
+        static final Viewport NONE = new Viewport(0, 0, 0);
+        final int x0, y0, w;
+
+        private Viewport(int x0, int y0, int w) { this.x0 = x0; this.y0 = y0; this.w = w; }
+
+        /**
+         * The window for a player at (x, y): prev while they stay clear of its edges,
+         * else re-centred on them. Re-centring only within a quarter-window of the edge
+         * means walking costs a snapshot every few moves instead of each one.
+         */
+        static Viewport fit(Viewport prev, int x, int y, int side) {
+            int w = VIEWPORT > 0 ? Math.min(VIEWPORT, side) : side;
+            int vx = prev.x0, vy = prev.y0, margin = w / 4;
+            if (w != prev.w || x < vx + margin || x >= vx + w - margin) vx = x - w / 2;
+            if (w != prev.w || y < vy + margin || y >= vy + w - margin) vy = y - w / 2;
+            vx = Math.max(0, Math.min(side - w, vx));
+            vy = Math.max(0, Math.min(side - w, vy));
+            return vx == prev.x0 && vy == prev.y0 && w == prev.w ? prev : new Viewport(vx, vy, w);
+        }
+
+        boolean contains(int x, int y) { return x >= x0 && y >= y0 && x < x0 + w && y < y0 + w; }
+    }
+
+    private static ByteBuffer encodeLine(String msg) {
+        return ByteBuffer.wrap((msg + LINE_SEP).getBytes(WIRE_CHARSET)).asReadOnlyBuffer();
+    }
+
+    /**
+     * One logical message, encoded lazily and at most once per wire format.
+     * Subclasses override {@link #encodeBinary()} when a typed frame exists.
+     * Not thread-safe: build one per broadcast.
+     */
+    private static class Outgoing {
+        // wire formats, chosen per connection during HELLO
+        static final int TEXT = 0, BINARY = 1, BINARY_RLE = 2, BINARY_DEFLATE = 3;
+
+        final String line;
+        private final ByteBuffer[] encoded = new ByteBuffer[4];
+
+        Outgoing(String line) { this.line = line; }
+
+        ByteBuffer view(int wire) {
+            ByteBuffer b = encoded[wire];
+            if (b == null) {
+                if (wire == TEXT) b = encodeText();
+                else if (wire == BINARY) b = encodeBinary();
+                else b = FrameCompression.compress(view(BINARY), wire);
+                encoded[wire] = b;
+            }
+            if (wire > BINARY) FrameCompression.recordSent(wire, encoded[BINARY].remaining(), b.remaining());
+            return b.duplicate();
+        }
+
+        ByteBuffer encodeText() { return encodeLine(line); }
+
+        ByteBuffer encodeBinary() { return BinaryWire.text(line); }
+    }
+
+    /**
+     * A published map change: x,y,cell triples in world coordinates, a reset (everyone
+     * needs a snapshot), or one player's viewport snapshot (grid != null).
+     */
+    private static final class MapUpdate extends Outgoing {
+        final long from, to;
+        final int left;
+        final int[] cells;
+        final boolean reset;          // delta: the world was re-rolled or resized
+        final boolean leftChanged;    // delta: the treasure count moved
+        final char[] grid;            // snapshot: row-major, side * side
+        final int side, x0, y0, worldSide;
+
+        private MapUpdate(long from, long to, int left, int[] cells, boolean leftChangedOrReset) {
+            super(null);
+            this.from = from; this.to = to; this.left = left; this.cells = cells;
+            this.reset = cells == null; this.leftChanged = leftChangedOrReset;
+            this.grid = null; this.side = this.x0 = this.y0 = this.worldSide = 0;
+        }
+
+        private MapUpdate(long version, int left, int side, char[] grid, int x0, int y0, int worldSide) {
+            super(null);
+            this.from = this.to = version; this.left = left; this.cells = null;
+            this.reset = false; this.leftChanged = false;
+            this.grid = grid; this.side = side; this.x0 = x0; this.y0 = y0; this.worldSide = worldSide;
+        }
+
+        /** c's viewport as of publishedVersion; caller holds treasureLock with nothing unpublished. */
+        static MapUpdate snapshot(ClientHandler c, WorldSnapshot snap) {
+            Viewport v = c.view;
+            c.viewMoved = false;
+            c.mapVersion = snap.version;
+            return new MapUpdate(snap.version, snap.treasures, v.w, snap.cells(v.x0, v.y0, v.w), v.x0, v.y0, snap.side);
+        }
+
+        boolean touches(ClientHandler c) {
+            if (reset || leftChanged) return true;
+            for (int i = 0; i < cells.length; i += 3) if (c.sees(cells[i], cells[i + 1])) return true;
+            return false;
+        }
+
+        /** The part of this delta inside c's viewport, continuing from c's version; null if none. */
+        MapUpdate clip(ClientHandler c) {
+            int n = 0;
+            for (int i = 0; i < cells.length; i += 3) if (c.sees(cells[i], cells[i + 1])) n += 3;
+            if (n == 0 && !leftChanged) return null;
+            int[] mine = new int[n];
+            n = 0;
+            for (int i = 0; i < cells.length; i += 3) {
+                if (!c.sees(cells[i], cells[i + 1])) continue;
+                mine[n++] = cells[i]; mine[n++] = cells[i + 1]; mine[n++] = cells[i + 2];
+            }
+            return new MapUpdate(c.mapVersion, to, left, mine, leftChanged);
+        }
+
+        @Override ByteBuffer encodeText() {
+            StringBuilder sb = new StringBuilder(48 + (grid != null ? grid.length : cells.length * 3));
+            if (grid != null) {
+                sb.append("[MAP_SNAPSHOT] ").append(to).append(' ').append(side).append(' ').append(left).append(' ');
+                sb.append(grid);
+                sb.append(' ').append(x0).append(' ').append(y0).append(' ').append(worldSide);
+            } else {
+                sb.append("[MAP_DELTA] ").append(from).append(' ').append(to).append(' ').append(left);
+                for (int i = 0; i < cells.length; i += 3) {
+                    sb.append(' ').append(cells[i]).append(',').append(cells[i + 1]).append(',').append((char) cells[i + 2]);
+                }
+            }
+            return encodeLine(sb.toString());
+        }
+
+        @Override ByteBuffer encodeBinary() {
+            return grid != null ? BinaryWire.mapSnapshot(to, left, side, grid, x0, y0, worldSide)
+                    : BinaryWire.mapDelta(from, to, left, cells);
+        }
+    }
+
+    // ======= Binary wire protocol (HELLO BINARY) =======
+    /**
+     * Length-prefixed typed frames: varint(length of type + payload), u8 type, payload.
+     * Integers are LEB128 varints (zigzag when signed), strings are varint length + UTF-8.
+     * A client opts in by answering the name prompt with "HELLO BINARY" and waiting
+     * for the "[HELLO] BINARY" line; after that both directions are binary and the
+     * name prompt is repeated as a TEXT frame.
+     */
+    private static final class BinaryWire {
+        // server -> client
+        static final int TEXT = 1;          // string: any other server line
+        static final int MAP_SNAPSHOT = 2;  // version, size, treasuresLeft, size*size cell chars, x0, y0, world size
+        static final int MAP_DELTA = 3;     // from, to, treasuresLeft, count, count*(x, y, cell char)
+        static final int QUESTION = 4;      // zigzag a, u8 op, zigzag b
+        static final int RESULT = 5;        // string name, millis
+        static final int COMPRESSED = 6;    // u8 method, varint raw length, compressed (type + payload)
+        // client -> server
+        static final int MOVE = 16;         // u8 'w' | 'a' | 's' | 'd'
+        static final int ANSWER = 17;       // zigzag value
+        static final int COMMAND = 18;      // string: name, MAP, LEADERBOARD, EXIT, ...
+
+        static final int MAX_FRAME = 1 << 20;
+
+        static ByteBuffer text(String s) {
+            ByteArrayOutputStream b = begin(TEXT);
+            putString(b, s);
+            return end(b);
+        }
+
+        static ByteBuffer result(String name, long millis) {
+            ByteArrayOutputStream b = begin(RESULT);
+            putString(b, name);
+            putVarint(b, millis);
+            return end(b);
+        }
+
+        static ByteBuffer question(int a, char op, int bb) {
+            ByteArrayOutputStream b = begin(QUESTION);
+            putVarint(b, zigzag(a));
+            b.write(op);
+            putVarint(b, zigzag(bb));
+            return end(b);
+        }
+
+        static ByteBuffer mapSnapshot(long version, int left, int side, char[] cells, int x0, int y0, int worldSide) {
+            ByteArrayOutputStream b = begin(MAP_SNAPSHOT);
+            putVarint(b, version);
+            putVarint(b, side);
+            putVarint(b, left);
+            for (char c : cells) putVarint(b, c);
+            putVarint(b, x0);
+            putVarint(b, y0);
+            putVarint(b, worldSide);
+            return end(b);
+        }
+
+        static ByteBuffer mapDelta(long from, long to, int left, int[] cells) {
+            ByteArrayOutputStream b = begin(MAP_DELTA);
+            putVarint(b, from);
+            putVarint(b, to);
+            putVarint(b, left);
+            putVarint(b, cells.length / 3);
+            for (int v : cells) putVarint(b, v);
+            return end(b);
+        }
+
+        private static ByteArrayOutputStream begin(int type) {
+            ByteArrayOutputStream b = new ByteArrayOutputStream(64);
+            b.write(type);
+            return b;
+        }
+
+        static ByteBuffer end(ByteArrayOutputStream body) {
+            ByteArrayOutputStream f = new ByteArrayOutputStream(body.size() + 5);
+            putVarint(f, body.size());
+            f.write(body.toByteArray(), 0, body.size());
+            return ByteBuffer.wrap(f.toByteArray()).asReadOnlyBuffer();
+        }
+
+        static void putVarint(ByteArrayOutputStream b, long v) {
+            while ((v & ~0x7FL) != 0) { b.write((int) ((v & 0x7F) | 0x80)); v >>>= 7; }
+            b.write((int) v);
+        }
+
+        static void putString(ByteArrayOutputStream b, String s) {
+            byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+            putVarint(b, utf.length);
+            b.write(utf, 0, utf.length);
+        }
+
+        static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+
+        static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+        /** Reads a varint, or returns -1 (position restored) if {@code buf} ends first. */
+        static long getVarint(ByteBuffer buf) {
+            int start = buf.position();
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!buf.hasRemaining()) { buf.position(start); return -1; }
+                int b = buf.get() & 0xFF;
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        static long readVarint(InputStream in) throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) throw new EOFException();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("varint too long");
+        }
+
+        /** A varint that must be complete within {@code frame}. */
+        static long frameVarint(ByteBuffer frame) throws ProtocolException {
+            int start = frame.position();
+            long v;
+            try { v = getVarint(frame); } catch (IllegalArgumentException e) { throw new ProtocolException(e.getMessage()); }
+            if (frame.position() == start) throw new ProtocolException("truncated varint");
+            return v;
+        }
+
+        static String getString(ByteBuffer buf) throws ProtocolException {
+            long len = frameVarint(buf);
+            if (len < 0 || len > buf.remaining()) throw new ProtocolException("string length " + len + " past frame end");
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), (int) len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + (int) len);
+            return s;
+        }
+
+        /** Turns a client frame back into the equivalent text command; a malformed frame is a ProtocolException. */
+        static String toCommand(ByteBuffer frame) throws ProtocolException {
+            if (!frame.hasRemaining()) throw new ProtocolException("empty frame");
+            int type = frame.get() & 0xFF;
+            switch (type) {
+                case MOVE:
+                    if (!frame.hasRemaining()) throw new ProtocolException("short MOVE frame");
+                    return String.valueOf((char) frame.get());
+                case ANSWER: return "ANSWER " + unzigzag(frameVarint(frame));
+                case COMMAND: return getString(frame);
+                default: throw new ProtocolException("unknown frame type " + type);
+            }
+        }
+    }
+
+    // ======= Frame compression (HELLO BINARY RLE | DEFLATE) =======
+    /**
+     * Wraps large binary frames in a COMPRESSED frame. RLE is PackBits over the raw
+     * frame body, which mostly collapses the runs of '.' in a map snapshot. DEFLATE
+     * uses a preset dictionary primed with map cells and common server lines; the
+     * client must use the identical {@link #DICTIONARY}. Frames under the threshold,
+     * or that would not shrink, are sent as-is.
+     */
+    private static final class FrameCompression {
+        static final int METHOD_RLE = 1, METHOD_DEFLATE = 2;
+        static final int THRESHOLD = Integer.getInteger("treasure.compress.threshold", 128);
+        static final int LEVEL = Integer.getInteger("treasure.compress.level", Deflater.DEFAULT_COMPRESSION);
+        static final byte[] DICTIONARY = dictionary();
+
+        // pooled rather than ThreadLocal: with virtual threads that would be one zlib state per player
+        private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+        // per wire format: bytes the frames would have been, bytes actually queued
+        private static final AtomicLong[] RAW = { new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong() };
+        private static final AtomicLong[] SENT = { new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong() };
+
+        static byte[] dictionary() {
+            StringBuilder sb = new StringBuilder("[SERVER] [QUIZ] [RESULT] [BOT MOVE]  joined. left. found a treasure! Treasures left: ");
+            for (int i = 0; i < 256; i++) sb.append(i % 32 == 0 ? 'T' : '.');
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        static void recordSent(int wire, int raw, int sent) {
+            RAW[wire].addAndGet(raw);
+            SENT[wire].addAndGet(sent);
+        }
+
+        static String report() {
+            StringBuilder sb = new StringBuilder("Frame compression (threshold " + THRESHOLD + " B, level " + LEVEL + "):");
+            String[] names = { null, null, "rle", "deflate" };
+            for (int w = Outgoing.BINARY_RLE; w <= Outgoing.BINARY_DEFLATE; w++) {
+                long raw = RAW[w].get(), sent = SENT[w].get();
+                sb.append(' ').append(names[w]).append(' ').append(raw - sent).append(" bytes saved of ").append(raw).append(';');
+            }
+            return sb.toString();
+        }
+
+        /** {@code frame} is a complete BinaryWire frame (length prefix included). */
+        static ByteBuffer compress(ByteBuffer frame, int wire) {
+            ByteBuffer f = frame.duplicate();
+            int bodyLen = (int) BinaryWire.getVarint(f);
+            if (bodyLen < THRESHOLD) return frame;
+            byte[] body = new byte[bodyLen];
+            f.get(body);
+            byte[] packed = wire == Outgoing.BINARY_RLE ? rle(body) : deflate(body);
+            ByteArrayOutputStream b = new ByteArrayOutputStream(packed.length + 8);
+            b.write(BinaryWire.COMPRESSED);
+            b.write(wire == Outgoing.BINARY_RLE ? METHOD_RLE : METHOD_DEFLATE);
+            BinaryWire.putVarint(b, bodyLen);
+            b.write(packed, 0, packed.length);
+            ByteBuffer out = BinaryWire.end(b);
+            return out.remaining() < frame.remaining() ? out : frame;
+        }
+
+        /** PackBits: n in 0..127 = n+1 literals follow; n in 128..255 = next byte repeated n-125 times. */
+        static byte[] rle(byte[] in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2);
+            int i = 0;
+            while (i < in.length) {
+                int run = 1;
+                while (i + run < in.length && run < 130 && in[i + run] == in[i]) run++;
+                if (run >= 3) {
+                    out.write(run + 125);
+                    out.write(in[i]);
+                    i += run;
+                    continue;
+                }
+                int start = i, lit = 0;
+                while (i < in.length && lit < 128) {
+                    if (i + 2 < in.length && in[i] == in[i + 1] && in[i] == in[i + 2]) break;
+                    i++;
+                    lit++;
+                }
+                out.write(lit - 1);
+                out.write(in, start, lit);
+            }
+            return out.toByteArray();
+        }
+
+        static byte[] deflate(byte[] in) {
+            Deflater d = DEFLATERS.poll();
+            if (d == null) d = new Deflater(LEVEL);
+            try {
+                d.setDictionary(DICTIONARY);
+                d.setInput(in);
+                d.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2 + 16);
+                byte[] chunk = new byte[512];
+                while (!d.finished()) {
+                    int n = d.deflate(chunk);
+                    out.write(chunk, 0, n);
+                }
+                return out.toByteArray();
+            } finally {
+                d.reset();
+                DEFLATERS.offer(d);
+            }
+        }
+    }
+
+    // ======= Rooms =======
+    /**
+     * One independent match: its own players, bots, world, mode, quiz and map versions.
+     * Rooms never share game locks, so a busy room cannot stall another. Each room is
+     * pinned to one single-threaded shard of {@link #SHARDS}; its race tick, quiz turns,
+     * bot moves and lobby timeout all run there, so rooms on different shards proceed in
+     * parallel while one room's timed work stays serial. Player commands still run on
+     * the connection's own thread and take the room's locks as before.
+     */
+    private static final class Room {
+        final String name;
+        private final ScheduledExecutorService shard; // every timer and tick of this room runs here
+        private final ScheduledFuture<?> ticker;      // race tick, null when TICK_HZ is 0
+        private boolean closed = false;               // matchLock; no joins once set
+
+        private final CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
+        private final CopyOnWriteArrayList<Bot> bots = new CopyOnWriteArrayList<>();
+        private final World world = new World(); // treasures + occupancy, guarded by treasureLock
+        private final Entities entities = new Entities(); // players on the map and bots, guarded by treasureLock
+
+        private final ReentrantLock matchLock = new ReentrantLock();       // lobby + match start/stop
+        private final ReentrantLock treasureLock = new ReentrantLock();    // grid size + treasures
+        private volatile boolean gameStarted = false;
+        private volatile String mode = "race"; // "race" or "quiz"
+        private volatile int gridSize = 10;
+        private volatile int treasureCount = BASE_TREASURES;
+        private volatile long raceStartMillis = 0L;
+
+        private final QuizManager quizManager = new QuizManager();
+
+        // Randomness is per room and seeded, so a match replays from its recorded seed.
+        // Each stream is only ever used by one thread at a time, never behind a CAS:
+        // mapRng under treasureLock (treasures, spawns), shardRng only on this room's
+        // shard thread (quiz questions, bot answers and moves, bot delays).
+        private long seed;                       // current match seed (matchLock)
+        private int matches = 0;                 // matches started (matchLock)
+        private SplittableRandom mapRng;
+        private volatile SplittableRandom shardRng;
+
+        Room(String name, ScheduledExecutorService shard, long seed) {
+            this.name = name;
+            this.shard = shard;
+            this.seed = seed;
+            this.mapRng = new SplittableRandom(seed);
+            this.shardRng = mapRng.split();
+            this.ticker = TICK_HZ > 0 ? startRaceTicker() : null;
+        }
+
+        /** Runs {@code r} on this room's shard after {@code delayMs}. */
+        private ScheduledFuture<?> schedule(Runnable r, long delayMs) {
+            return shard.schedule(() -> {
+                try {
+                    r.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Room " + name + " task error: " + e);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void recalcGridAndTreasures() {
+            treasureLock.lock();
+            try {
+                int total = clients.size() + bots.size();
+                if (GRID_SIZE > 0) gridSize = Math.min(GRID_SIZE, World.MAX_SIDE);
+                else if (total <= 4) gridSize = 10;
+                else if (total <= 10) gridSize = 15;
+                else gridSize = 20;
+                treasureCount = TREASURES > 0 ? TREASURES : Math.max(BASE_TREASURES, Math.max(1, total));
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        /**
+         * Join/leave: fits the world to the new head count without a re-roll. A changed
+         * side keeps every treasure that still fits and pulls players past the new edge
+         * back onto it; then only the treasures missing from the target are placed.
+         * Before the first match there is nothing to keep; startMatch() places it all.
+         */
+        private void resize() {
+            treasureLock.lock();
+            try {
+                int oldTarget = (int) Math.min(treasureCount, (long) gridSize * gridSize / 2);
+                recalcGridAndTreasures();
+                if (world.side() == 0) return;
+                int trimmed = 0;
+                if (world.side() != gridSize) {
+                    entities.leaveAll(world);
+                    trimmed = world.resize(gridSize);
+                    entities.clampInto(gridSize);
+                    entities.reenter(world);
+                }
+                // treasures cut off by a shrink move inside; on top of that only the growth in
+                // the target is placed, so cells already claimed stay empty
+                int newTarget = (int) Math.min(treasureCount, (long) gridSize * gridSize / 2);
+                int growth = Math.max(0, Math.min(newTarget - oldTarget, newTarget - world.treasureCount() - trimmed));
+                if (trimmed + growth > 0) {
+                    for (int cell : Placement.sample(mapRng, gridSize, trimmed + growth, entities.cellsWithin(gridSize), SPAWN_CLEARANCE, world.treasureCells())) {
+                        world.addTreasure(cell % gridSize, cell / gridSize);
+                    }
+                }
+                // nothing left without anyone finishing (no free cell to move into): re-roll,
+                // as announce() does after a last claim that doesn't end the match
+                if (gameStarted && world.treasureCount() == 0) initTreasures();
+                publishWorld();
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        private void initTreasures() {
+            treasureLock.lock();
+            try {
+                world.reset(gridSize);
+                int target = (int) Math.min(treasureCount, (long) gridSize * gridSize / 2);
+                for (int cell : Placement.sample(mapRng, gridSize, target, entities.cellsWithin(gridSize), SPAWN_CLEARANCE)) {
+                    world.addTreasure(cell % gridSize, cell / gridSize);
+                }
+                entities.reenter(world);
+                publishWorld();
+                System.out.println("Placed " + world.treasureCount() + " treasures on " + gridSize + "x" + gridSize
+                        + " (" + world.liveChunks() + " chunks)");
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        private final AtomicReference<WorldSnapshot> worldSnapshot = new AtomicReference<>(WorldSnapshot.EMPTY);
+
+        /** Freezes the world into a new snapshot if anything shown changed; caller holds treasureLock. */
+        private void publishWorld() {
+            WorldSnapshot cur = worldSnapshot.get();
+            if (!world.changed && cur.version == publishedVersion && cur.mode.equals(mode) && cur.started == gameStarted) return;
+            worldSnapshot.set(new WorldSnapshot(publishedVersion, world.side(), world.treasureCount(), mode, gameStarted,
+                    world.freeze(), entities.keys()));
+        }
+
+        /** The player's window as of the current snapshot; takes no locks. */
+        private String renderClientMap(ClientHandler c) {
+            WorldSnapshot snap = worldSnapshot.get();
+            Viewport v = c.view; // follow() keeps it on the player under treasureLock; refit only for a resize since
+            v = Viewport.fit(v, v.x0 + v.w / 2, v.y0 + v.w / 2, snap.side);
+            int side = snap.side, w = v.w;
+            if (w > MAP_DRAW_MAX) {
+                return "\n--- MAP " + side + "x" + side + " (too large to draw; set treasure.viewport) ---\n"
+                        + "Treasures left: " + snap.treasures + "\n";
+            }
+            StringBuilder sb = new StringBuilder(64 + w * (2 * w + 1));
+            sb.append("\n--- MAP ").append(side).append("x").append(side);
+            if (w < side) sb.append(", view ").append(w).append("x").append(w).append(" at (").append(v.x0).append(',').append(v.y0).append(')');
+            sb.append(" ---\n");
+            snap.appendRows(sb, v.x0, v.y0, w);
+            sb.append("Treasures left: ").append(snap.treasures).append('\n');
+            return sb.toString();
+        }
+
+        /** Admin map from the current snapshot; takes no locks. */
+        private void printServerMap() {
+            WorldSnapshot snap = worldSnapshot.get();
+            int side = snap.side;
+            if (side > MAP_DRAW_MAX) {
+                System.out.println("\n--- SERVER MAP " + side + "x" + side + " (too large to draw) ---\nTreasures left: " + snap.treasures + "\n");
+                return;
+            }
+            StringBuilder sb = new StringBuilder(64 + side * (2 * side + 1));
+            sb.append("\n--- SERVER MAP ").append(name).append(' ').append(side).append("x").append(side)
+                    .append(" (v").append(snap.version).append(", ").append(snap.mode).append(snap.started ? "" : ", not started").append(") ---\n");
+            snap.appendRows(sb, 0, 0, side);
+            sb.append("Treasures left: ").append(snap.treasures).append('\n');
+            System.out.println(sb.toString());
+        }
+
+        /**
+         * Encodes the line once per wire format in use; every recipient queues its own
+         * read-only view of the same bytes, so a map frame costs one encoding pass
+         * however many players.
+         */
+        private void broadcastToClients(String msg) { broadcast(new Outgoing(msg)); }
+
+        private void broadcast(Outgoing o) {
+            for (ClientHandler c : clients) c.enqueue(o.view(c.wire));
+        }
+
+        private void broadcastFinish(String who, double timeSec) {
+            broadcast(new Outgoing("[FINISH]:" + who + ":" + String.format(Locale.US, "%.3f", timeSec)) {
+                @Override ByteBuffer encodeBinary() { return BinaryWire.result(who, Math.round(timeSec * 1000)); }
+            });
+        }
+
+        // ======= Versioned map protocol (MAPMODE DELTA) =======
+        // Delta clients hold their viewport of the world as of some published version. They get one
+        // [MAP_SNAPSHOT] <ver> <size> <treasuresLeft> <size*size cells, row-major> <x0> <y0> <worldSize>
+        // and then [MAP_DELTA] <fromVer> <toVer> <treasuresLeft> <x>,<y>,<cell> ...
+        // with world coordinates. A client whose version != fromVer sends RESYNC for a fresh snapshot.
+        // Binary clients always use this protocol, as typed frames.
+        // Everything here runs under treasureLock so each outbox sees versions in order.
+        //
+        // Each player sees a VIEWPORT-wide window (the whole world when that is smaller).
+        // A delta goes only to players whose window holds a changed cell or when the treasure
+        // count changed, so a skipped version never hid anything from that player; their next
+        // delta simply starts at the version they last got. Moving the window sends a snapshot.
+        private int publishedSide = 0;
+        private long publishedVersion = 0L;
+        private int publishedTreasures = 0;
+
+        /** After a move: full frame to legacy clients, a cell delta to delta clients. */
+        private void broadcastMap() { broadcastMap(true); }
+
+        private void broadcastMap(boolean legacyFrames) {
+            treasureLock.lock();
+            try {
+                MapUpdate update = advanceMapVersion();
+                ByteBuffer full = null;        // legacy frame for whole-world viewers
+                MapUpdate snapshot = null;     // snapshot for whole-world delta viewers
+                for (ClientHandler c : clients) {
+                    if (c.room != this) continue; // switched rooms since the iteration began
+                    int id = c.entity;
+                    c.follow(id >= 0 ? entities.x(id) : 0, id >= 0 ? entities.y(id) : 0, world.side());
+                    if (c.view.w > MAP_DRAW_MAX) continue;
+                    boolean whole = c.view.w == world.side();
+                    if (!c.deltaMaps) {
+                        if (!legacyFrames || !(whole || c.viewMoved || (update != null && update.touches(c)))) continue;
+                        c.viewMoved = false;
+                        if (!whole) { c.enqueueMap(encodeLine(renderClientMap(c))); continue; }
+                        if (full == null) full = encodeLine(renderClientMap(c));
+                        c.enqueueMap(full.duplicate());
+                    } else if (c.viewMoved || c.mapVersion < 0 || (update != null && update.reset)) {
+                        if (!whole) { c.enqueueMap(MapUpdate.snapshot(c, worldSnapshot.get()).view(c.wire)); continue; }
+                        if (snapshot == null) snapshot = MapUpdate.snapshot(c, worldSnapshot.get());
+                        c.viewMoved = false;
+                        c.mapVersion = snapshot.to;
+                        c.enqueueMap(snapshot.view(c.wire));
+                    } else if (update != null) {
+                        MapUpdate mine = update.from == c.mapVersion && whole ? update : update.clip(c);
+                        if (mine == null) continue;
+                        c.mapVersion = mine.to;
+                        c.enqueueMap(mine.view(c.wire));
+                    }
+                }
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        /** Switches {@code c} to delta maps (if not already) and sends it a snapshot. */
+        private void sendMapSnapshot(ClientHandler c) {
+            treasureLock.lock();
+            try {
+                c.deltaMaps = true;
+                c.mapVersion = -1;
+                broadcastMap(false); // publishes pending changes to everyone, then snapshots c
+                if (c.view.w > MAP_DRAW_MAX) c.enqueueMap(new Outgoing(renderClientMap(c)).view(c.wire));
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        /** Publishes the world's changed cells; null when nothing visible changed. */
+        private MapUpdate advanceMapVersion() {
+            int left = world.treasureCount();
+            int prevLeft = publishedTreasures;
+            long from = publishedVersion;
+            publishedTreasures = left;
+            if (world.reshaped || publishedSide != world.side()) {
+                publishedSide = world.side();
+                world.clearDirty();
+                publishedVersion++;
+                publishWorld();
+                return new MapUpdate(from, publishedVersion, left, null, true);
+            }
+
+            int[] cells = new int[Math.max(3, world.dirtyCount * 3)]; // x, y, cell triples
+            int n = 0;
+            for (int d = 0; d < world.dirtyCount; d++) {
+                int k = world.dirty[d];
+                int x = k % publishedSide, y = k / publishedSide;
+                char cur = world.symbolAt(x, y);
+                if (world.before[d] == cur) continue; // changed and changed back
+                cells[n++] = x;
+                cells[n++] = y;
+                cells[n++] = cur;
+            }
+            world.clearDirty();
+            if (n == 0 && left == prevLeft) { publishWorld(); return null; }
+            publishedVersion++;
+            publishWorld();
+            return new MapUpdate(from, publishedVersion, left, Arrays.copyOf(cells, n), left != prevLeft);
+        }
+
+        // ======= Quiz manager =======
+        private class QuizManager {
+            private final List<Object> turnList = new ArrayList<>(); // mix of ClientHandler and Bot
+            private int idx = 0;
+            private ScheduledFuture<?> turnTimer = null;
+            private volatile Integer currentAnswer = null;
+            private volatile Object activeParticipant = null;
+            private volatile int qA = 0, qB = 0;
+            private volatile char qOp = '+';
+            private final ReentrantLock lock = new ReentrantLock();
+
+            void buildTurnList() {
+                lock.lock();
+                try {
+                    turnList.clear();
+                    turnList.addAll(clients);
+                    turnList.addAll(bots);
+                    if (idx >= turnList.size()) idx = 0;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void start() {
+                lock.lock();
+                try {
+                    buildTurnList();
+                    if (turnList.isEmpty()) return;
+                    broadcastToClients("[QUIZ] Starting quiz (turn-based).");
+                    scheduleNextTurn(500);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void scheduleNextTurn(long delayMs) {
+                lock.lock();
+                try {
+                    schedule(this::nextTurn, delayMs);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void nextTurn() {
+                lock.lock();
+                try {
+                    if (turnTimer != null) { turnTimer.cancel(false); turnTimer = null; }
+                    buildTurnList();
+                    if (turnList.isEmpty()) return;
+                    if (idx >= turnList.size()) idx = 0;
+                    activeParticipant = turnList.get(idx);
+                    idx = (idx + 1) % turnList.size();
+                    String who = (activeParticipant instanceof ClientHandler) ? ((ClientHandler) activeParticipant).name : ((Bot) activeParticipant).name + " (BOT)";
+                    broadcastToClients("[QUIZ] It is now " + who + "'s turn.");
+                    generateQuestion();
+
+                    if (activeParticipant instanceof ClientHandler) {
+                        ClientHandler ch = (ClientHandler) activeParticipant;
+                        ch.sendQuestion(qA, qOp, qB);
+                        ch.send("[QUESTION_PROMPT] Reply: ANSWER <number>");
+                        Outgoing waiting = new Outgoing("[QUIZ] Waiting for " + ch.name + "'s answer.");
+                        for (ClientHandler other : clients) if (other != ch) other.enqueue(waiting.view(other.wire));
+                    } else {
+                        Bot b = (Bot) activeParticipant;
+                        broadcastToClients("[QUIZ] " + b.name + " (BOT) is answering...");
+                    }
+
+                    // start per-turn timer
+                    turnTimer = schedule(() -> {
+                        lock.lock();
+                        try {
+                            String whoTimed = (activeParticipant instanceof ClientHandler) ? ((ClientHandler) activeParticipant).name : ((Bot) activeParticipant).name;
+                            broadcastToClients("[QUIZ] " + whoTimed + " timed out.");
+                            if (activeParticipant instanceof Bot) ((Bot) activeParticipant).onAnswerResult(false);
+                            scheduleNextTurn(500);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }, QUIZ_TIME_LIMIT_MS);
+
+                    // if bot's turn, schedule its attempt
+                    if (activeParticipant instanceof Bot) {
+                        Bot b = (Bot) activeParticipant;
+                        int delay = 500 + shardRng.nextInt(1500);
+                        schedule(() -> b.attemptAnswer(currentAnswer), delay);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void generateQuestion() {
+                SplittableRandom rng = shardRng;
+                qA = rng.nextInt(10) + 1;
+                qB = rng.nextInt(10) + 1;
+                int op = rng.nextInt(4);
+                switch (op) {
+                    case 0: qOp = '+'; currentAnswer = qA + qB; break;
+                    case 1: qOp = '-'; currentAnswer = qA - qB; break;
+                    case 2: qOp = '*'; currentAnswer = qA * qB; break;
+                    default:
+                        // produce integer division with dividend divisible by divisor
+                        qB = rng.nextInt(4) + 1;
+                        int multiplier = rng.nextInt(5) + 1;
+                        qA = qB * multiplier;
+                        qOp = '/';
+                        currentAnswer = qA / qB;
+                        break;
+                }
+            }
+
+            void receiveClientAnswer(ClientHandler ch, String text) {
+                lock.lock();
+                try {
+                    if (ch != activeParticipant) { ch.send("[QUIZ] Not your turn."); return; }
+                    if (currentAnswer == null) { ch.send("[QUIZ] No active question."); return; }
+                    int v;
+                    try { v = Integer.parseInt(text.trim()); } catch (NumberFormatException e) { ch.send("[QUIZ] Send a numeric answer."); return; }
+                    if (turnTimer != null) { turnTimer.cancel(false); turnTimer = null; }
+                    if (v == currentAnswer) {
+                        broadcastToClients("[QUIZ] " + ch.name + " answered correctly.");
+                        ch.canMove = true;
+                        ch.send("[QUIZ] You may move now (W/A/S/D). Movement has no time limit.");
+                        // when client moves, they must call notifyMoveConsumed()
+                    } else {
+                        ch.send("[QUIZ] Wrong answer.");
+                        scheduleNextTurn(500);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void notifyMoveConsumed() {
+                lock.lock();
+                try {
+                    scheduleNextTurn(500);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Room closed: no further turns. */
+            void stop() {
+                lock.lock();
+                try {
+                    if (turnTimer != null) { turnTimer.cancel(false); turnTimer = null; }
+                    turnList.clear();
+                    activeParticipant = null;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } // end QuizManager
+
+        // ======= Race tick =======
+        /**
+         * Race moves are queued per player and applied here at TICK_HZ: one queued
+         * move per player per round, round-robin until every queue is empty. Each
+         * tick starts the rounds one player further along, so a contested pickup
+         * does not always go to whoever joined first. All players then get one map
+         * update for the tick instead of one per keystroke.
+         */
+        private ScheduledFuture<?> startRaceTicker() {
+            long period = 1_000_000L / TICK_HZ;
+            return shard.scheduleAtFixedRate(() -> {
+                try {
+                    raceTick();
+                } catch (RuntimeException e) {
+                    // an escaped exception would cancel the schedule
+                    System.out.println("Race tick error in room " + name + ": " + e);
+                }
+            }, period, period, TimeUnit.MICROSECONDS);
+        }
+
+        private int tickOffset = 0; // shard thread only; rotates who moves first each tick
+
+        private void raceTick() {
+            if (!"race".equals(mode)) return;
+            ClientHandler[] order = clients.toArray(new ClientHandler[0]);
+            if (order.length == 0) return;
+            int start = Math.floorMod(tickOffset++, order.length);
+            boolean moved = false;
+            for (boolean any = true; any; ) {
+                any = false;
+                for (int k = 0; k < order.length; k++) {
+                    ClientHandler c = order[(start + k) % order.length];
+                    Character d = c.moves.poll();
+                    if (d == null) continue;
+                    any = true;
+                    announce(move(c, d));
+                }
+                moved |= any;
+            }
+            if (moved) broadcastMap();
+        }
+
+        // ======= Match lifecycle (callers hold matchLock) =======
+        private static final String HOST_PROMPT = "You are the host. Choose mode: 'race' or 'quiz' (type exactly):";
+        private ClientHandler choosingHost = null;                   // first human, until they pick a mode
+        private final List<ClientHandler> lobby = new ArrayList<>(); // joiners waiting on choosingHost
+
+        private void startMatch(String choice) {
+            if (matches++ > 0) seed = new SplittableRandom(seed).nextLong(); // each match's seed follows from the last
+            treasureLock.lock();
+            try {
+                mapRng = new SplittableRandom(seed);
+                shardRng = mapRng.split();
+            } finally {
+                treasureLock.unlock();
+            }
+            System.out.println("Room " + name + " match " + matches + " seed " + seed);
+            mode = ("quiz".equalsIgnoreCase(choice)) ? "quiz" : "race";
+            gameStarted = true;
+            recalcGridAndTreasures();
+            initTreasures();
+            raceStartMillis = System.currentTimeMillis();
+            if ("quiz".equals(mode)) quizManager.start();
+        }
+
+        private void spawnQuizBotsIfAlone() {
+            if ("quiz".equals(mode) && clients.size() == 1 && bots.isEmpty()) {
+                for (int i = 1; i <= 2; i++) {
+                    bots.add(new Bot("Bot" + i, 0.35));
+                }
+            }
+        }
+
+        // ======= Players =======
+        /**
+         * A pickup as decided under treasureLock: the move that landed on the cell and
+         * the claim are one critical section, so of two players stepping onto the same
+         * treasure exactly one gets it. Everything that follows (messages, the admin
+         * map, leaderboard I/O, a re-roll) is done by {@link #announce} after unlocking.
+         */
+        private static final class Claim {
+            final String who;
+            final boolean bot;
+            final int left;          // treasures left after this one
+            final boolean raceOver;  // took the last treasure of a race
+            final double timeSec;
+
+            Claim(String who, boolean bot, int left, boolean raceOver, double timeSec) {
+                this.who = who; this.bot = bot; this.left = left; this.raceOver = raceOver; this.timeSec = timeSec;
+            }
+        }
+
+        /** Moves c one step and claims any treasure there; null when nothing was picked up. */
+        private Claim move(ClientHandler c, char d) {
+            treasureLock.lock();
+            try {
+                if (c.room != this || c.entity < 0) return null; // switched rooms with moves still queued here
+                int x = entities.x(c.entity), y = entities.y(c.entity);
+                switch (d) {
+                    case 'w': y = Math.max(0, y - 1); break;
+                    case 's': y = Math.min(gridSize - 1, y + 1); break;
+                    case 'a': x = Math.max(0, x - 1); break;
+                    case 'd': x = Math.min(gridSize - 1, x + 1); break;
+                }
+                entities.moveTo(c.entity, x, y, world);
+                return claim(c.entity, c.name, false, c.startMillis);
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        /** Takes the treasure under entity {@code id}, if any: test-and-clear only; caller holds treasureLock. */
+        private Claim claim(int id, String who, boolean bot, long startMillis) {
+            if (!world.claimTreasure(entities.x(id), entities.y(id))) return null;
+            int left = world.treasureCount();
+            boolean raceOver = left == 0 && "race".equals(mode);
+            if (raceOver && !bot) gameStarted = false; // stop the race
+            return new Claim(who, bot, left, raceOver, (System.currentTimeMillis() - startMillis) / 1000.0);
+        }
+
+        /** Reports a claim; takes no lock of its own until a re-roll. */
+        private void announce(Claim cl) {
+            if (cl == null) return;
+            String who = cl.bot ? cl.who + " (BOT)" : cl.who;
+            broadcastToClients("[SERVER] " + who + " found a treasure!");
+            // claim() only clears the cell; the admin map needs a fresh snapshot, taken here outside the claim
+            treasureLock.lock();
+            try {
+                publishWorld();
+            } finally {
+                treasureLock.unlock();
+            }
+            printServerMap();
+            if (cl.raceOver) {
+                long millis = Math.round(cl.timeSec * 1000);
+                if (leaderboard.offer(cl.who, millis) > millis) recordBest(cl.who, millis);
+                broadcastToClients("[RESULT] " + cl.who + " finished the race in " + String.format(Locale.US, "%.2f", cl.timeSec) + " sec");
+                broadcastFinish(cl.who, cl.timeSec);
+                if (!cl.bot) {
+                    broadcastToClients("[SERVER] All treasures found! Race over 🏁");
+                    return; // DO NOT respawn new treasures
+                }
+            }
+            if (cl.left == 0) {
+                recalcGridAndTreasures();
+                initTreasures();
+                printServerMap();
+                broadcastMap();
+            }
+        }
+
+        /**
+         * Takes {@code c} out of this room: off the map, out of the lobby, bots rebalanced.
+         * The last human out of any room but MAIN closes it.
+         */
+        private void leave(ClientHandler c) {
+            c.cancelLobbyTimer();
+            clients.remove(c);
+            treasureLock.lock();
+            try {
+                if (c.entity >= 0) entities.remove(c.entity, world);
+                c.entity = -1;
+                c.room = null;
+                c.view = Viewport.NONE;
+                c.viewMoved = true;
+                c.mapVersion = -1L;
+                c.canMove = false;
+                c.moves.clear();
+            } finally {
+                treasureLock.unlock();
+            }
+            broadcastToClients("[SERVER] " + c.name + " left.");
+            List<ClientHandler> released = Collections.emptyList();
+            matchLock.lock();
+            try {
+                lobby.remove(c);
+                if (choosingHost == c) {
+                    // host vanished mid-choice: fall back to race for whoever was waiting
+                    choosingHost = null;
+                    if (!lobby.isEmpty()) {
+                        startMatch("race");
+                        released = new ArrayList<>(lobby);
+                        lobby.clear();
+                    }
+                }
+                if (clients.isEmpty() && this != MAIN_ROOM) { close(); return; }
+                if (clients.size() == 1 && bots.isEmpty()) {
+                    for (int i = 1; i <= 2; i++) bots.add(new Bot("Bot" + i, 0.35));
+                } else if (clients.size() > 1 && !bots.isEmpty()) {
+                    dismissBots();
+                }
+                resize();
+            } finally {
+                matchLock.unlock();
+            }
+            for (ClientHandler w : released) w.enterGame();
+            broadcastMap(false);
+        }
+
+        /** Unlists the room and stops its tick, turns and bots; caller holds matchLock. */
+        private void close() {
+            closed = true;
+            rooms.remove(name, this);
+            if (ticker != null) ticker.cancel(false);
+            quizManager.stop();
+            dismissBots();
+            System.out.println("Room " + name + " closed.");
+        }
+
+        private void dismissBots() {
+            treasureLock.lock();
+            try {
+                for (Bot b : bots) {
+                    b.active = false;
+                    entities.remove(b.entity, world);
+                }
+                bots.clear();
+            } finally {
+                treasureLock.unlock();
+            }
+        }
+
+        /** One line for ROOMS and the admin console. */
+        String describe() {
+            return String.format(Locale.US, "%-16s %3d humans %2d bots  %-4s %-7s seed %d", name, clients.size(), bots.size(),
+                    mode.toUpperCase(), gameStarted ? "playing" : choosingHost != null ? "lobby" : "waiting", seed);
+        }
+
+        // ======= Bot class =======
+        private class Bot {
+            final String name;
+            final double correctProb;
+            final int entity;                   // id in entities
+            volatile boolean canMove = false;
+            volatile boolean active = true;
+
+            Bot(String name, double correctProb) {
+                this.name = name;
+                this.correctProb = correctProb;
+                treasureLock.lock();
+                try {
+                    int x = mapRng.nextInt(Math.max(1, gridSize)), y = mapRng.nextInt(Math.max(1, gridSize));
+                    entity = entities.add(name.charAt(0), x, y, world);
+                } finally {
+                    treasureLock.unlock();
+                }
+            }
+
+            void attemptAnswer(Integer correctAnswer) {
+                if (!active) return;
+                boolean correct = shardRng.nextDouble() < correctProb;
+                if (correct) {
+                    broadcastToClients("[QUIZ] " + name + " (BOT) answered correctly.");
+                    canMove = true;
+                    schedule(this::performBotMoveAfterQuiz, 700 + shardRng.nextInt(800));
+                } else {
+                    broadcastToClients("[QUIZ] " + name + " (BOT) answered incorrectly.");
+                    quizManager.scheduleNextTurn(400);
+                }
+            }
+
+            void performBotMoveAfterQuiz() {
+                if (!active) return;
+                if (!canMove) { quizManager.notifyMoveConsumed(); return; }
+                char[] dirs = new char[]{'w','a','s','d'};
+                char d = dirs[shardRng.nextInt(dirs.length)];
+                int x, y;
+                Claim found;
+                treasureLock.lock();
+                try {
+                    if (!active) return;
+                    x = entities.x(entity);
+                    y = entities.y(entity);
+                    switch (d) {
+                        case 'w': y = Math.max(0, y - 1); break;
+                        case 's': y = Math.min(gridSize - 1, y + 1); break;
+                        case 'a': x = Math.max(0, x - 1); break;
+                        case 'd': x = Math.min(gridSize - 1, x + 1); break;
+                    }
+                    entities.moveTo(entity, x, y, world);
+                    found = claim(entity, name, true, raceStartMillis);
+                } finally {
+                    treasureLock.unlock();
+                }
+                canMove = false;
+                broadcastToClients("[BOT MOVE] " + name + " moved " + Character.toUpperCase(d) + " to (" + x + "," + y + ")");
+                announce(found);
+                broadcastMap();
+                quizManager.notifyMoveConsumed();
+            }
+
+            void onAnswerResult(boolean correct) {
+                if (correct) broadcastToClients("[BOT] " + name + " (BOT) got it right.");
+                else broadcastToClients("[BOT] " + name + " (BOT) got it wrong.");
+            }
+        } // end Bot
+    } // end Room
+
+    // ======= ClientHandler (human) =======
+    private enum Phase { NAME, MODE, LOBBY, PLAYING }
+
+    private static class ClientHandler implements Runnable {
+        final Socket socket;        // thread-per-connection transport
+        final NioSession session;   // selector transport (null in thread mode)
+        DataInputStream in;         // thread mode: text lines, then binary frames after HELLO BINARY
+        // Encoded lines waiting for this player's socket. Game threads only enqueue, so a
+        // slow receiver never stalls a broadcaster (who may be holding treasureLock).
+        final BlockingQueue<ByteBuffer> outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+        final AtomicLong queuedBytes = new AtomicLong();  // enqueued but not yet written
+        final AtomicLong droppedMaps = new AtomicLong();
+        volatile long overLimitSince = 0L;                 // 0 while under the high watermark
+        volatile boolean mapOwed = false;                  // a map update was skipped; resend on drain
+        private Thread writer;      // thread mode: drains outbox
+        String name = "Player";
+        volatile boolean deltaMaps = false; // MAPMODE DELTA: snapshot + deltas instead of full frames
+        volatile boolean binary = false;    // HELLO BINARY: typed frames both ways (implies deltaMaps)
+        volatile int wire = Outgoing.TEXT;  // outbound encoding, incl. HELLO BINARY RLE|DEFLATE
+        volatile Room room;                 // null before the name step and while switching rooms
+        int entity = -1;                    // id in room.entities while on the map (treasureLock)
+        volatile Viewport view = Viewport.NONE; // written under treasureLock
+        boolean viewMoved = true;           // window moved since the last map frame (treasureLock)
+        long mapVersion = -1L;              // delta clients: last version sent, -1 = needs a snapshot (treasureLock)
+        boolean canMove = false;
+        long startMillis = 0L;
+        volatile Phase phase = Phase.NAME;  // also set on the room shard when the lobby times out
+        private volatile ScheduledFuture<?> lobbyTimer; // defaults the mode while this player hosts a lobby
+        final BlockingQueue<Character> moves = new ArrayBlockingQueue<>(MAX_QUEUED_MOVES); // race tick input
+
+        ClientHandler(Socket s) { this.socket = s; this.session = null; }
+
+        ClientHandler(NioSession session) { this.socket = null; this.session = session; }
+
+        void send(String msg) { enqueue(new Outgoing(msg).view(wire)); }
+
+        void sendQuestion(int a, char op, int b) {
+            enqueue(new Outgoing("[QUESTION] " + a + " " + op + " " + b + " = ?") {
+                @Override ByteBuffer encodeBinary() { return BinaryWire.question(a, op, b); }
+            }.view(wire));
+        }
+
+        /**
+         * Handles a "HELLO <caps>" line during the name step; false if {@code line} is the name.
+         * Caps: BINARY, optionally with RLE or DEFLATE frame compression.
+         */
+        private boolean negotiate(String line) {
+            if (line == null || !line.toUpperCase().startsWith("HELLO ")) return false;
+            List<String> caps = Arrays.asList(line.toUpperCase().split("\\s+"));
+            if (caps.contains("BINARY")) {
+                int w = caps.contains("DEFLATE") ? Outgoing.BINARY_DEFLATE : caps.contains("RLE") ? Outgoing.BINARY_RLE : Outgoing.BINARY;
+                // last text line; the client switches on seeing it
+                send("[HELLO] BINARY" + (w == Outgoing.BINARY_DEFLATE ? " DEFLATE" : w == Outgoing.BINARY_RLE ? " RLE" : ""));
+                binary = true;
+                deltaMaps = true;
+                wire = w;
+            } else {
+                send("[HELLO]");
+            }
+            send("Enter your name:");
+            return true;
+        }
+
+        /** Thread mode: next command, as a text line whatever the wire format. */
+        private String readCommand() throws IOException {
+            if (binary) {
+                long len;
+                try { len = BinaryWire.readVarint(in); } catch (EOFException e) { return null; }
+                if (len < 0) throw new ProtocolException("negative frame length"); // 10-byte varint past Long.MAX_VALUE
+                if (len > BinaryWire.MAX_FRAME) throw new IOException("frame too large");
+                byte[] frame = new byte[(int) len];
+                in.readFully(frame);
+                return BinaryWire.toCommand(ByteBuffer.wrap(frame));
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') line.write(b);
+            if (b == -1 && line.size() == 0) return null;
+            String s = new String(line.toByteArray(), WIRE_CHARSET);
+            return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+        }
+
+        /** Queues an encoded frame; {@code frame} must be this connection's own view. */
+        void enqueue(ByteBuffer frame) { enqueue(frame, false); }
+
+        /** Like {@link #enqueue(ByteBuffer)}, but may be skipped under SLOW_POLICY. */
+        void enqueueMap(ByteBuffer frame) { enqueue(frame, true); }
+
+        private void enqueue(ByteBuffer frame, boolean map) {
+            if (queuedBytes.get() > OUTBOX_HIGH_BYTES) {
+                if (overLimitSince == 0L) overLimitSince = System.currentTimeMillis();
+                if (map && SLOW_POLICY != SlowPolicy.DISCONNECT) {
+                    droppedMaps.incrementAndGet();
+                    // a skipped delta leaves a version gap, so delta clients are always owed a snapshot
+                    if (SLOW_POLICY == SlowPolicy.COALESCE || deltaMaps) mapOwed = true;
+                    return;
+                }
+            }
+            if (map && mapOwed) { droppedMaps.incrementAndGet(); return; } // superseded by the resend
+            int size = frame.remaining();
+            if (!outbox.offer(frame)) {
+                System.out.println("Dropping " + name + ": outbound queue full");
+                closeConnection();
+                return;
+            }
+            queuedBytes.addAndGet(size);
+            if (session != null) session.requestFlush();
+        }
+
+        /** Called by the writer once {@code bytes} have reached the socket. */
+        void written(long bytes) {
+            long left = queuedBytes.addAndGet(-bytes);
+            if (left <= OUTBOX_HIGH_BYTES) overLimitSince = 0L; // back under the limit: the disconnect clock stops
+            if (left > OUTBOX_LOW_BYTES) return;                 // the low watermark only gates the owed-map resend
+            Room r = room;
+            if (mapOwed && r != null) {
+                mapOwed = false;
+                if (deltaMaps) r.sendMapSnapshot(this);
+                else enqueueMap(encodeLine(r.renderClientMap(this)));
+            }
+        }
+
+        /** Thread mode writer: one flush for everything queued since the last one. */
+        private void writeLoop() {
+            List<ByteBuffer> batch = new ArrayList<>();
+            try {
+                OutputStream os = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                WritableByteChannel ch = Channels.newChannel(os); // frames are read-only views, no array()
+                while (true) {
+                    batch.add(outbox.take());
+                    outbox.drainTo(batch);
+                    long bytes = 0;
+                    for (ByteBuffer b : batch) { bytes += b.remaining(); ch.write(b); }
+                    os.flush();
+                    batch.clear();
+                    written(bytes);
+                }
+            } catch (InterruptedException | IOException ignored) {
+                // cleanup() interrupts us, or the socket went away; the reader notices either way
+            }
+        }
+
+        private void closeConnection() {
+            if (session != null) { session.close(); return; }
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+
+        @Override public void run() {
+            try {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                writer = WORKERS.newThread(this::writeLoop);
+                writer.start();
+
+                send("Enter your name:");
+                String line;
+                while ((line = readCommand()) != null) {
+                    if (!onLine(line)) break;
+                }
+            } catch (IOException e) {
+                System.out.println("Connection lost for " + name + ": " + e.getMessage());
+            } finally { cleanup(); }
+        }
+
+        /**
+         * Lobby state machine shared by both transports, driven one line at a time:
+         * NAME -> (MODE for the first human in a room | LOBBY while its host is choosing)
+         * -> PLAYING, starting in MAIN_ROOM; JOIN and CREATE re-enter at the room step.
+         * Nothing here waits for input while holding matchLock, so joins and cleanup
+         * never block on another player's keyboard; an undecided host is defaulted
+         * after LOBBY_TIMEOUT_MS. Returns false when the connection should close.
+         */
+        boolean onLine(String line) {
+            switch (phase) {
+                case NAME:
+                    if (negotiate(line)) return true;
+                    acceptName(line);
+                    join(MAIN_ROOM);
+                    return true;
+                case MODE:
+                    chooseMode(room, line, null);
+                    return true;
+                case LOBBY:
+                    if (!handleRoomCommand(line.trim())) send("[SERVER] Still waiting for the host to choose a mode.");
+                    return true;
+                default:
+                    return handleLine(line);
+            }
+        }
+
+        /**
+         * Enters {@code r}: as its host if it is idle, into its lobby while a host is
+         * choosing, else straight into the match. False if the room closed meanwhile.
+         */
+        private boolean join(Room r) {
+            r.matchLock.lock();
+            try {
+                if (r.closed) return false;
+                room = r;
+                r.clients.add(this);
+                System.out.println("Human joined " + r.name + ": " + name + " (humans: " + r.clients.size() + ")");
+                r.resize();
+                if (!r.gameStarted && r.choosingHost == null && r.clients.size() == 1) {
+                    r.choosingHost = this;
+                    phase = Phase.MODE;
+                    send(Room.HOST_PROMPT);
+                    lobbyTimer = r.schedule(() -> {
+                        if (room == r) chooseMode(r, LOBBY_DEFAULT_MODE,
+                                "[SERVER] No mode chosen in " + LOBBY_TIMEOUT_MS / 1000 + "s; starting " + LOBBY_DEFAULT_MODE.toUpperCase() + ".");
+                    }, LOBBY_TIMEOUT_MS);
+                    return true;
+                }
+                if (r.choosingHost != null) {
+                    r.lobby.add(this);
+                    phase = Phase.LOBBY;
+                    send("[SERVER] Waiting for the host to choose a mode...");
+                    return true;
+                }
+                if (!r.gameStarted) r.startMatch("race");
+                r.spawnQuizBotsIfAlone();
+            } finally {
+                r.matchLock.unlock();
+            }
+            enterGame();
+            return true;
+        }
+
+        /** Host answered (or timed out): starts r's match and admits its lobby. First call wins. */
+        private void chooseMode(Room r, String choice, String notice) {
+            if (r == null) return;
+            List<ClientHandler> admitted;
+            r.matchLock.lock();
+            try {
+                if (r.choosingHost != this) return;
+                cancelLobbyTimer();
+                r.startMatch(choice);
+                r.choosingHost = null;
+                r.spawnQuizBotsIfAlone();
+                admitted = new ArrayList<>(r.lobby);
+                r.lobby.clear();
+            } finally {
+                r.matchLock.unlock();
+            }
+            if (notice != null) send(notice);
+            enterGame();
+            for (ClientHandler w : admitted) w.enterGame();
+        }
+
+        private void cancelLobbyTimer() {
+            ScheduledFuture<?> t = lobbyTimer;
+            lobbyTimer = null;
+            if (t != null) t.cancel(false);
+        }
+
+        private void acceptName(String nm) {
+            name = (nm != null && !nm.trim().isEmpty()) ? nm.trim() : ("Player" + ThreadLocalRandom.current().nextInt(1000));
+        }
+
+        private void enterGame() {
+            Room r = room;
+            int x, y;
+            r.treasureLock.lock();
+            try {
+                phase = Phase.PLAYING;
+                x = r.mapRng.nextInt(r.gridSize);
+                y = r.mapRng.nextInt(r.gridSize);
+                for (int tries = 0; tries < 8 && r.world.hasTreasure(x, y); tries++) { // don't spawn onto a treasure
+                    x = r.mapRng.nextInt(r.gridSize);
+                    y = r.mapRng.nextInt(r.gridSize);
+                }
+                if (entity < 0) entity = r.entities.add(symbol(), x, y, r.world);
+                else r.entities.moveTo(entity, x, y, r.world);
+                follow(x, y, r.world.side());
+                r.publishWorld();
+            } finally {
+                r.treasureLock.unlock();
+            }
+            startMillis = System.currentTimeMillis();
+            send("[SERVER] Welcome " + name + "! You spawned at (" + x + "," + y + ") in room " + r.name + ". Mode: " + r.mode.toUpperCase());
+            if (deltaMaps) r.sendMapSnapshot(this); else send(r.renderClientMap(this));
+            r.broadcastToClients("[SERVER] " + name + " joined.");
+            r.broadcastMap(false);
+        }
+
+        /** ROOMS, CREATE <name> [seed] and JOIN <name>; false if {@code line} is none of them. */
+        private boolean handleRoomCommand(String line) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            if ("rooms".equals(lower)) { send(renderRooms()); return true; }
+            boolean create = lower.startsWith("create ");
+            if (!create && !lower.startsWith("join ")) return false;
+            String[] args = lower.substring(lower.indexOf(' ') + 1).trim().split("\\s+");
+            String target = args[0];
+            if (!target.matches("[a-z0-9_-]{1,16}")) { send("[SERVER] Room names are 1-16 letters, digits, '_' or '-'."); return true; }
+            Long seed = null;
+            if (create && args.length > 1) {
+                try { seed = Long.parseLong(args[1]); } catch (NumberFormatException e) { send("[SERVER] Use CREATE <name> [seed]."); return true; }
+            }
+            Room from = room;
+            Room to = create ? (seed != null ? openRoom(target, seed) : openRoom(target)) : rooms.get(target);
+            if (to == null) { send(create ? "[SERVER] Room " + target + " already exists; JOIN it." : "[SERVER] No room " + target + ". ROOMS lists them."); return true; }
+            if (to == from) { send("[SERVER] You are already in room " + target + "."); return true; }
+            if (from != null) from.leave(this);
+            if (!join(to)) {
+                send("[SERVER] Room " + target + " closed; back to " + MAIN_ROOM.name + ".");
+                join(MAIN_ROOM);
+            }
+            return true;
+        }
+
+        /** Handles one in-game command; returns false when the player asked to leave. */
+        private boolean handleLine(String line) {
+            line = line.trim();
+            Room r = room;
+            if (r == null) return false; // cleanup() ran on another thread
+            if (line.isEmpty()) return true;
+            if ("exit".equalsIgnoreCase(line)) return false;
+            if ("map".equalsIgnoreCase(line)) {
+                if (deltaMaps) r.sendMapSnapshot(this); else send(r.renderClientMap(this));
+                return true;
+            }
+            if ("resync".equalsIgnoreCase(line)) { r.sendMapSnapshot(this); return true; }
+            if (line.toLowerCase().startsWith("mapmode ")) {
+                String m = line.substring(8).trim();
+                if ("delta".equalsIgnoreCase(m)) r.sendMapSnapshot(this);
+                else if ("full".equalsIgnoreCase(m) && binary) send("[SERVER] Binary clients always use delta maps.");
+                else if ("full".equalsIgnoreCase(m)) { deltaMaps = false; send(r.renderClientMap(this)); }
+                else send("[SERVER] Use MAPMODE DELTA or MAPMODE FULL.");
+                return true;
+            }
+            String lower = line.toLowerCase(Locale.ROOT);
+            if ("leaderboard".equals(lower) || lower.startsWith("leaderboard ")) { send(renderLeaderboard(line.substring(11).trim())); return true; }
+            if ("rank".equals(lower) || lower.startsWith("rank ")) { send(renderRank(line.length() > 4 ? line.substring(5).trim() : name)); return true; }
+            if (handleRoomCommand(line)) return true;
+
+            if ("race".equalsIgnoreCase(r.mode)) {
+                handleRaceCommand(r, line);
+            } else { // quiz mode
+                if (line.toLowerCase().startsWith("answer ")) {
+                    String[] parts = line.split(" ", 2);
+                    if (parts.length < 2) { send("[QUIZ] Invalid ANSWER format."); return true; }
+                    r.quizManager.receiveClientAnswer(this, parts[1]);
+                    return true;
+                }
+
+                // ✅ Handle movement after correct answer
+                if (line.length() == 1 && "wasdWASD".contains(line)) {
+                    char d = Character.toLowerCase(line.charAt(0));
+                    if (!canMove) {
+                        send("[QUIZ] You cannot move now. Answer on your turn first.");
+                        return true;
                     }
+
+                    r.announce(r.move(this, d));            // ✅ Move and detect treasure
+                    r.broadcastMap();                       // ✅ Update map for all players
+                    canMove = false;
+
+                    r.quizManager.notifyMoveConsumed();     // ✅ Move to next player's turn
+                    return true;
+                }
+
+                send("[SERVER] Unknown command in quiz mode. Use ANSWER <number>, W/A/S/D (if allowed), MAP, LEADERBOARD [page], RANK [name], ROOMS, JOIN <room>, EXIT.");
+            }
+            return true;
+        }
+
+        private void handleRaceCommand(Room r, String line) {
+            if (line.length() == 1 && "wasdWASD".contains(line)) {
+                char d = Character.toLowerCase(line.charAt(0));
+                if (TICK_HZ > 0) { moves.offer(d); return; } // applied by the room's raceTick(); extra keys past the cap are dropped
+                r.announce(r.move(this, d));
+                r.broadcastMap();
+            } else {
+                send("[SERVER] Unknown command in race mode. Use W/A/S/D, MAP, LEADERBOARD [page], RANK [name], ROOMS, JOIN <room>, EXIT.");
+            }
+        }
+
+        char symbol() { return name.charAt(0); }
+
+        /** Moves the viewport along with the player at (x, y); caller holds the room's treasureLock. */
+        void follow(int x, int y, int side) {
+            Viewport v = Viewport.fit(view, x, y, side);
+            if (v == view) return;
+            view = v;
+            viewMoved = true;
+        }
+
+        boolean sees(int cx, int cy) { return view.contains(cx, cy); }
+
+        private void cleanup() {
+            if (socket != null) { try { socket.close(); } catch (IOException ignored) {} }
+            if (writer != null) writer.interrupt();
+            if (phase == Phase.NAME) return; // never joined
+            Room r = room;
+            if (r != null) r.leave(this);
+        }
+    } // end ClientHandler
+
+    // ======= Selector transport (-Dtreasure.io=nio) =======
+    /**
+     * Non-blocking front end: one acceptor plus a fixed set of {@link IoLoop}s,
+     * each owning a Selector. Command handling runs on the loop that owns the
+     * connection, so thousands of players cost a few threads instead of one each.
+     * The wire format is the same line protocol the blocking handler speaks.
+     */
+    private static void startNioServer() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(PORT));
+        IoLoop[] loops = new IoLoop[IO_THREADS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+            Thread t = new Thread(loops[i], "io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        System.out.println("Listening on port " + PORT + " (nio, " + loops.length + " I/O threads) ...");
+
+        Thread acceptThread = new Thread(() -> {
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel ch = server.accept();
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    loops[next].register(ch);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    System.out.println("Accept error: " + e.getMessage());
                     break;
                 }
             }
+        }, "acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private static class IoLoop implements Runnable {
+        final Selector selector;
+        private final Queue<SocketChannel> toRegister = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> toFlush = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> toCleanup = new ConcurrentLinkedQueue<>(); // closed, not yet out of their room
+
+        IoLoop() throws IOException { this.selector = Selector.open(); }
+
+        void register(SocketChannel ch) { toRegister.add(ch); selector.wakeup(); }
+
+        void requestFlush(NioSession s) { toFlush.add(s); selector.wakeup(); }
+
+        void requestCleanup(NioSession s) { toCleanup.add(s); selector.wakeup(); }
+
+        @Override public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = toRegister.poll()) != null) {
+                        NioSession s = new NioSession(this, ch);
+                        s.key = ch.register(selector, SelectionKey.OP_READ, s);
+                        s.handler.send("Enter your name:");
+                    }
+                    NioSession s;
+                    while ((s = toFlush.poll()) != null) s.flush();
+                    while ((s = toCleanup.poll()) != null) s.handler.cleanup(); // no game lock held here
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioSession ses = (NioSession) key.attachment();
+                        if (!key.isValid()) { ses.close(); continue; }
+                        if (key.isWritable()) ses.flush();
+                        if (key.isValid() && key.isReadable()) ses.read();
+                    }
+                } catch (IOException e) {
+                    System.out.println("I/O loop error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // a bad command must not take down every connection on this loop
+                    System.out.println("I/O loop handler error: " + e);
+                }
+            }
         }
     }
 
-    // ======= small helper =======
-    private static void scheduleRunnable(Runnable r, long delayMs) {
-        new Timer(true).schedule(new TimerTask() { @Override public void run() { r.run(); } }, delayMs);
+    private static class NioSession {
+        private static final int MAX_LINE = 8 * 1024;
+
+        final IoLoop loop;
+        final SocketChannel channel;
+        final ClientHandler handler;
+        SelectionKey key;
+        private final ByteBuffer readBuf = ByteBuffer.allocate(4096);
+        private final ByteArrayOutputStream lineBuf = new ByteArrayOutputStream(128);
+        private final ByteBuffer[] batch = new ByteBuffer[64]; // gathering write in progress
+        private int batchStart, batchEnd;
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        NioSession(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = new ClientHandler(this);
+        }
+
+        /** Thread-safe: asks the owning loop to drain the handler's outbox. */
+        void requestFlush() {
+            if (!closed.get() && flushRequested.compareAndSet(false, true)) loop.requestFlush(this);
+        }
+
+        /** Loop thread only. Everything queued goes out in one gathering write. */
+        void flush() {
+            flushRequested.set(false);
+            if (closed.get() || key == null) return;
+            try {
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        batchStart = batchEnd = 0;
+                        ByteBuffer b;
+                        while (batchEnd < batch.length && (b = handler.outbox.poll()) != null) batch[batchEnd++] = b;
+                        if (batchEnd == 0) break;
+                    }
+                    channel.write(batch, batchStart, batchEnd - batchStart);
+                    long done = 0;
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        done += batch[batchStart].limit(); // views start at position 0
+                        batch[batchStart++] = null;
+                    }
+                    if (done > 0) handler.written(done);
+                    if (batchStart < batchEnd) { key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); return; }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        /** Loop thread only. */
+        void read() {
+            int n;
+            try { n = channel.read(readBuf); } catch (IOException e) {
+                System.out.println("Connection lost for " + handler.name + ": " + e.getMessage());
+                close();
+                return;
+            }
+            if (n < 0) { close(); return; }
+            readBuf.flip();
+            try {
+                while (readBuf.hasRemaining() && !closed.get()) {
+                    if (handler.binary) {
+                        if (!readFrame()) break;
+                        continue;
+                    }
+                    byte b = readBuf.get();
+                    if (b == '\n') {
+                        String line = new String(lineBuf.toByteArray(), WIRE_CHARSET);
+                        lineBuf.reset();
+                        if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                        if (!handler.onLine(line)) close();
+                    } else if (lineBuf.size() < MAX_LINE) {
+                        lineBuf.write(b);
+                    } else {
+                        System.out.println("Dropping " + handler.name + ": line too long");
+                        close();
+                    }
+                }
+            } catch (ProtocolException e) {
+                System.out.println("Dropping " + handler.name + ": " + e.getMessage());
+                close();
+            } catch (RuntimeException e) {
+                // only this session goes; the loop keeps serving everyone else
+                System.out.println("Dropping " + handler.name + " after handler error: " + e);
+                close();
+            } finally {
+                readBuf.compact();
+            }
+        }
+
+        /** Dispatches one complete binary frame from readBuf; false if more bytes are needed. */
+        private boolean readFrame() throws ProtocolException {
+            int start = readBuf.position();
+            long len;
+            try { len = BinaryWire.getVarint(readBuf); } catch (IllegalArgumentException e) { throw new ProtocolException(e.getMessage()); }
+            if (readBuf.position() == start) return false; // length not all here yet
+            if (len < 0) throw new ProtocolException("negative frame length");
+            if (len > readBuf.capacity() - 10) {
+                System.out.println("Dropping " + handler.name + ": frame too large");
+                close();
+                return false;
+            }
+            if (readBuf.remaining() < len) { readBuf.position(start); return false; }
+            ByteBuffer frame = readBuf.slice();
+            frame.limit((int) len);
+            readBuf.position(readBuf.position() + (int) len);
+            if (!handler.onLine(BinaryWire.toCommand(frame))) close();
+            return true;
+        }
+
+        /**
+         * Thread-safe. May run inside a broadcast holding a room's locks (outbox full),
+         * so leaving the room is deferred to the owning loop's next pass.
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            handler.outbox.clear();
+            loop.requestCleanup(this);
+        }
     }
+
 }